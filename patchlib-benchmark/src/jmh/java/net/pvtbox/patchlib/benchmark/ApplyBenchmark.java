@@ -0,0 +1,115 @@
+package net.pvtbox.patchlib.benchmark;
+
+import net.pvtbox.patchlib.BlockSignature;
+import net.pvtbox.patchlib.Patch;
+import net.pvtbox.patchlib.PatchOptions;
+import net.pvtbox.patchlib.VerifyMode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Applying of a patch to the old file, including verification of the result
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ApplyBenchmark {
+    @Param({"1048576", "16777216", "134217728"})
+    public long fileSize;
+
+    @Param({"65536", "1048576"})
+    public int blockSize;
+
+    @Param({BenchmarkFiles.random, BenchmarkFiles.insert, BenchmarkFiles.append})
+    public String change;
+
+    @Param({"INLINE", "FINAL"})
+    public VerifyMode verifyMode;
+
+    /**
+     * Threads of pipelined applying, 0 to apply on the calling thread
+     */
+    @Param({"0", "4"})
+    public int threads;
+
+    private BenchmarkFiles files;
+    private File patch;
+    private File result;
+    private String oldHash;
+    private PatchOptions options;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        files = new BenchmarkFiles(fileSize, change);
+        patch = files.file("patch");
+        result = files.file("result");
+        BlockSignature oldSignature = Patch.blockSignature(files.oldFile.getPath(), blockSize);
+        oldHash = Patch.hashFromBlocksHashes(oldSignature);
+        OutputStream patchStream = new FileOutputStream(patch);
+        try {
+            Patch.createSignaturePatch(files.newFile.getPath(), patchStream, null, null,
+                    oldHash, oldSignature,
+                    Patch.rollingHashes(files.oldFile.getPath(), blockSize), blockSize, null);
+        } finally {
+            patchStream.close();
+        }
+        executor = threads == 0 ? null : Executors.newFixedThreadPool(threads);
+        options = new PatchOptions().setVerifyMode(verifyMode).setExecutor(executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        files.delete();
+    }
+
+    @Benchmark
+    public ArrayList acceptPatch(ProcessedBytes processed) throws IOException {
+        processed.bytes += fileSize;
+        return Patch.acceptPatch(files.oldFile.getPath(), result.getPath(), patch.getPath(),
+                oldHash, options);
+    }
+}
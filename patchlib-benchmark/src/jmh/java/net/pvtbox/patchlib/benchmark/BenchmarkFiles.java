@@ -0,0 +1,115 @@
+package net.pvtbox.patchlib.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Old and new versions of a file of random content, new version made by a change pattern
+ */
+final class BenchmarkFiles {
+    static final String random = "random";
+    static final String insert = "insert";
+    static final String append = "append";
+
+    private static final int editSize = 4096;
+    private static final int edits = 16;
+
+    final File directory;
+    final File oldFile;
+    final File newFile;
+
+    BenchmarkFiles(long size, String change) throws IOException {
+        directory = File.createTempFile("patchlib", "benchmark");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        oldFile = new File(directory, "old");
+        newFile = new File(directory, "new");
+        Random rnd = new Random(size);
+        byte[] data = new byte[(int) Math.min(size, 1024 * 1024)];
+
+        RandomAccessFile oldOut = new RandomAccessFile(oldFile, "rw");
+        RandomAccessFile newOut = new RandomAccessFile(newFile, "rw");
+        try {
+            long[] insertAt = new long[edits];
+            for (int i = 0; i < edits; i++) {
+                insertAt[i] = size / edits * i + rnd.nextInt((int) Math.min(size / edits, Integer.MAX_VALUE));
+            }
+            int nextInsert = 0;
+            for (long written = 0; written < size; written += data.length) {
+                rnd.nextBytes(data);
+                int count = (int) Math.min(data.length, size - written);
+                oldOut.write(data, 0, count);
+                if (change.equals(insert)) {
+                    // new data goes before the byte at insert offset
+                    int start = 0;
+                    while (nextInsert < edits && insertAt[nextInsert] < written + count) {
+                        int at = (int) (insertAt[nextInsert] - written);
+                        newOut.write(data, start, at - start);
+                        newOut.write(randomBytes(rnd, editSize));
+                        start = at;
+                        nextInsert++;
+                    }
+                    newOut.write(data, start, count - start);
+                } else {
+                    newOut.write(data, 0, count);
+                }
+            }
+
+            if (change.equals(random)) {
+                for (int i = 0; i < edits; i++) {
+                    newOut.seek(Math.max(0, (long) (rnd.nextDouble() * (size - editSize))));
+                    newOut.write(randomBytes(rnd, (int) Math.min(editSize, size)));
+                }
+            } else if (change.equals(append)) {
+                newOut.seek(newOut.length());
+                newOut.write(randomBytes(rnd, (int) Math.max(editSize, size / edits)));
+            }
+        } finally {
+            oldOut.close();
+            newOut.close();
+        }
+    }
+
+    File file(String name) {
+        return new File(directory, name);
+    }
+
+    void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    private static byte[] randomBytes(Random rnd, int count) {
+        byte[] result = new byte[count];
+        rnd.nextBytes(result);
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+package net.pvtbox.patchlib.benchmark;
+
+import net.pvtbox.patchlib.BlockSignature;
+import net.pvtbox.patchlib.Chunking;
+import net.pvtbox.patchlib.Patch;
+import net.pvtbox.patchlib.PatchOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Creating of a patch from signatures of both files, patch is written to nowhere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+    static final String fixed = "fixed";
+    static final String rolling = "rolling";
+    static final String chunks = "cdc";
+
+    @Param({"1048576", "16777216", "134217728"})
+    public long fileSize;
+
+    @Param({"65536", "1048576"})
+    public int blockSize;
+
+    @Param({BenchmarkFiles.random, BenchmarkFiles.insert, BenchmarkFiles.append})
+    public String change;
+
+    @Param({fixed, rolling, chunks})
+    public String layout;
+
+    private BenchmarkFiles files;
+    private BlockSignature signature;
+    private BlockSignature oldSignature;
+    private String oldHash;
+    private TreeMap<Long, Integer> oldRollingHashes;
+    private PatchOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        files = new BenchmarkFiles(fileSize, change);
+        options = new PatchOptions();
+        if (layout.equals(chunks)) {
+            Chunking chunking = new Chunking(blockSize / 4, blockSize, blockSize * 4);
+            options.setChunking(chunking);
+            signature = Patch.chunkSignature(files.newFile.getPath(), chunking);
+            oldSignature = Patch.chunkSignature(files.oldFile.getPath(), chunking);
+        } else {
+            signature = Patch.blockSignature(files.newFile.getPath(), blockSize);
+            oldSignature = Patch.blockSignature(files.oldFile.getPath(), blockSize);
+            if (layout.equals(rolling)) {
+                oldRollingHashes = Patch.rollingHashes(files.oldFile.getPath(), blockSize);
+            }
+        }
+        oldHash = Patch.hashFromBlocksHashes(oldSignature);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        files.delete();
+    }
+
+    @Benchmark
+    public Map createPatch(ProcessedBytes processed) throws IOException, NoSuchAlgorithmException {
+        processed.bytes += fileSize;
+        return Patch.createSignaturePatch(files.newFile.getPath(), nowhere, null, signature,
+                oldHash, oldSignature, oldRollingHashes, blockSize, options);
+    }
+
+    private static final OutputStream nowhere = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+}
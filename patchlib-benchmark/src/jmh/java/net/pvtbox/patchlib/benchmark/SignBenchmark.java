@@ -0,0 +1,96 @@
+package net.pvtbox.patchlib.benchmark;
+
+import net.pvtbox.patchlib.BlockHash;
+import net.pvtbox.patchlib.BlockSignature;
+import net.pvtbox.patchlib.Chunking;
+import net.pvtbox.patchlib.Patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Signing of a file: fixed size blocks sequentially and in parallel, content defined chunks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SignBenchmark {
+    @Param({"1048576", "16777216", "134217728"})
+    public long fileSize;
+
+    @Param({"65536", "1048576"})
+    public int blockSize;
+
+    @Param({"md5", "xxh64"})
+    public String hash;
+
+    private BenchmarkFiles files;
+    private BlockHash blockHash;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        files = new BenchmarkFiles(fileSize, BenchmarkFiles.random);
+        blockHash = BlockHash.forName(hash);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        files.delete();
+    }
+
+    @Benchmark
+    public BlockSignature blocks(ProcessedBytes processed) {
+        processed.bytes += fileSize;
+        return Patch.blockSignature(files.oldFile.getPath(), blockSize, null, blockHash);
+    }
+
+    @Benchmark
+    public BlockSignature parallelBlocks(ProcessedBytes processed) {
+        processed.bytes += fileSize;
+        return Patch.blockSignature(files.oldFile.getPath(), blockSize, executor, blockHash);
+    }
+
+    @Benchmark
+    public BlockSignature chunks(ProcessedBytes processed) {
+        processed.bytes += fileSize;
+        return Patch.chunkSignature(files.oldFile.getPath(),
+                new Chunking(blockSize / 4, blockSize, blockSize * 4), blockHash);
+    }
+}
@@ -0,0 +1,69 @@
+package net.pvtbox.patchlib;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Compression codec of new blocks data in the patch.
+ * Codec is recorded by name for every compressed block, so codec used
+ * to create a patch must be registered on the side where patch is applied.
+ * Implementations must be thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class BlockCodec {
+    public static final BlockCodec deflate = new DeflateCodec(DeflateCodec.defaultLevel);
+
+    private static final HashMap<String, BlockCodec> codecs = new HashMap<>();
+
+    static {
+        register(deflate);
+    }
+
+    /**
+     * Name of the codec recorded in the patch manifest
+     */
+    public abstract String name();
+
+    /**
+     * Compresses source data to destination buffer
+     *
+     * @return size of compressed data, -1 if it doesn't fit into destination length
+     */
+    public abstract int compress(byte[] source, int offset, int length,
+                                 byte[] destination, int destinationOffset,
+                                 int destinationLength);
+
+    /**
+     * Decompresses source data, exactly destination length bytes are expected
+     */
+    public abstract void decompress(byte[] source, int offset, int length,
+                                    byte[] destination, int destinationOffset,
+                                    int destinationLength)
+            throws IOException;
+
+    public static synchronized void register(BlockCodec codec) {
+        codecs.put(codec.name(), codec);
+    }
+
+    public static synchronized BlockCodec forName(String name) {
+        return codecs.get(name);
+    }
+}
@@ -0,0 +1,69 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Compresses new blocks of the patch, keeps blocks raw if they don't get
+ * noticeably smaller. After incompressible block next blocks are not even tried,
+ * for twice as many blocks each time, so media files don't waste CPU.
+ */
+final class BlockCompressor {
+    private static final int maxSkip = 32;
+
+    private final BlockCodec codec;
+    private byte[] buffer = new byte[0];
+    private int skip = 0;
+    private int skipped = 0;
+
+    BlockCompressor(BlockCodec codec) {
+        this.codec = codec;
+    }
+
+    String codecName() {
+        return codec.name();
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return size of compressed data in {@link #buffer()}, -1 if block should be stored raw
+     */
+    int compress(byte[] data, int offset, int length) {
+        if (skipped < skip) {
+            skipped++;
+            return -1;
+        }
+        skipped = 0;
+        // compressed block has to save at least 1/16 of the size
+        int limit = length - length / 16 - 1;
+        if (limit <= 0) return -1;
+        if (buffer.length < limit) {
+            buffer = new byte[limit];
+        }
+        int size = codec.compress(data, offset, length, buffer, 0, limit);
+        if (size < 0) {
+            skip = Math.min(maxSkip, Math.max(1, skip * 2));
+            return -1;
+        }
+        skip = 0;
+        return size;
+    }
+}
@@ -0,0 +1,88 @@
+package net.pvtbox.patchlib;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Hash algorithm of blocks. Algorithm is recorded in the patch by name,
+ * so algorithm used to create a patch must be registered on the side where
+ * patch is applied. MD5 is the default, compatible with older versions.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class BlockHash {
+    public static final BlockHash md5 = new BlockHash() {
+        @Override
+        public String name() {
+            return "md5";
+        }
+
+        @Override
+        public MessageDigest newDigest() throws NoSuchAlgorithmException {
+            return MessageDigest.getInstance("MD5");
+        }
+    };
+
+    /**
+     * 64 bit xxHash, many times faster than MD5, but not cryptographic
+     */
+    public static final BlockHash xxHash64 = new BlockHash() {
+        @Override
+        public String name() {
+            return "xxh64";
+        }
+
+        @Override
+        public MessageDigest newDigest() {
+            return new XxHash64();
+        }
+    };
+
+    private static final HashMap<String, BlockHash> hashes = new HashMap<>();
+
+    static {
+        register(md5);
+        register(xxHash64);
+    }
+
+    /**
+     * Name of the algorithm recorded in the patch manifest
+     */
+    public abstract String name();
+
+    /**
+     * @return new digest instance, digests are used by one thread at a time
+     */
+    public abstract MessageDigest newDigest() throws NoSuchAlgorithmException;
+
+    public static synchronized void register(BlockHash hash) {
+        hashes.put(hash.name(), hash);
+    }
+
+    public static synchronized BlockHash forName(String name) {
+        return hashes.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
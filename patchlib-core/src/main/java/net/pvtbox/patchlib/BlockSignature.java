@@ -0,0 +1,201 @@
+package net.pvtbox.patchlib;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Block hashes of the file kept in primitive arrays: offsets in long[] and raw digests
+ * packed one after another in byte[], with open addressing index to find block by digest.
+ * Blocks must be added in order of offsets.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class BlockSignature {
+    private final int digestLength;
+    private long[] offsets;
+    private byte[] digests;
+    private int count;
+    /**
+     * Block index + 1 for every used slot, built on first lookup by digest
+     */
+    private int[] index;
+
+    public BlockSignature(int digestLength, int capacity) {
+        this.digestLength = digestLength;
+        offsets = new long[Math.max(capacity, 1)];
+        digests = new byte[Math.max(capacity, 1) * digestLength];
+    }
+
+    public static BlockSignature fromMap(TreeMap<Long, String> blocksHashes) {
+        int digestLength = blocksHashes.isEmpty() ? 16 : blocksHashes.firstEntry().getValue().length() / 2;
+        BlockSignature signature = new BlockSignature(digestLength, blocksHashes.size());
+        for (Map.Entry<Long, String> entry : blocksHashes.entrySet()) {
+            signature.add(entry.getKey(), Hex.decode(entry.getValue()), 0);
+        }
+        return signature;
+    }
+
+    public TreeMap<Long, String> toMap() {
+        TreeMap<Long, String> result = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            result.put(offsets[i], hashAt(i));
+        }
+        return result;
+    }
+
+    public void add(long offset, byte[] digest, int digestOffset) {
+        if (count > 0 && offset <= offsets[count - 1]) {
+            throw new IllegalArgumentException("Blocks must be added in order of offsets");
+        }
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            digests = Arrays.copyOf(digests, count * 2 * digestLength);
+        }
+        offsets[count] = offset;
+        System.arraycopy(digest, digestOffset, digests, count * digestLength, digestLength);
+        count++;
+        if (index != null) {
+            if (count * 2 > index.length) {
+                index = null;
+            } else {
+                insert(count - 1);
+            }
+        }
+    }
+
+    BlockSignature copy() {
+        BlockSignature result = new BlockSignature(digestLength, count);
+        System.arraycopy(offsets, 0, result.offsets, 0, count);
+        System.arraycopy(digests, 0, result.digests, 0, count * digestLength);
+        result.count = count;
+        return result;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int digestLength() {
+        return digestLength;
+    }
+
+    public long offsetAt(int block) {
+        return offsets[block];
+    }
+
+    public String hashAt(int block) {
+        return Hex.encode(digests, block * digestLength, digestLength);
+    }
+
+    public void digestAt(int block, byte[] target, int targetOffset) {
+        System.arraycopy(digests, block * digestLength, target, targetOffset, digestLength);
+    }
+
+    public boolean digestEquals(int block, byte[] digest, int digestOffset) {
+        int start = block * digestLength;
+        for (int i = 0; i < digestLength; i++) {
+            if (digests[start + i] != digest[digestOffset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the block with given offset or -1
+     */
+    public int indexOfOffset(long offset) {
+        int result = Arrays.binarySearch(offsets, 0, count, offset);
+        return result < 0 ? -1 : result;
+    }
+
+    /**
+     * @return index of the last block with given digest or -1
+     */
+    public int indexOf(byte[] digest, int digestOffset) {
+        if (count == 0) return -1;
+        if (index == null) {
+            buildIndex();
+        }
+        int mask = index.length - 1;
+        int slot = slot(digest, digestOffset) & mask;
+        while (index[slot] != 0) {
+            int block = index[slot] - 1;
+            if (digestEquals(block, digest, digestOffset)) return block;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+        index = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int block) {
+        int mask = index.length - 1;
+        int start = block * digestLength;
+        int slot = slot(digests, start) & mask;
+        while (index[slot] != 0) {
+            if (digestEquals(index[slot] - 1, digests, start)) {
+                // later block wins, same as for map of blocks by hash
+                index[slot] = block + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = block + 1;
+    }
+
+    private int slot(byte[] digest, int digestOffset) {
+        // digests are uniformly distributed already
+        int result = 0;
+        for (int i = 0; i < Math.min(4, digestLength); i++) {
+            result = (result << 8) | (digest[digestOffset + i] & 0xff);
+        }
+        return result ^ (result >>> 16);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BlockSignature)) return false;
+        BlockSignature other = (BlockSignature) o;
+        if (count != other.count || digestLength != other.digestLength) return false;
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] != other.offsets[i]) return false;
+        }
+        for (int i = 0; i < count * digestLength; i++) {
+            if (digests[i] != other.digests[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = count;
+        for (int i = 0; i < count * digestLength; i++) {
+            result = 31 * result + digests[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Parameters of content defined chunking (FastCDC). Chunk boundaries are found
+ * by gear rolling hash of the content, so they move together with the data
+ * on insertions and deletions instead of staying at multiples of block size.
+ * Chunks are at least min size and at most max size bytes, normalized
+ * to be close to average size.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Chunking {
+    public static final Chunking defaultChunking = new Chunking(
+            Patch.defaultBlockSize / 4, Patch.defaultBlockSize, Patch.defaultBlockSize * 4);
+
+    private static final long[] gear = new long[256];
+
+    static {
+        // fixed table, chunk boundaries must be the same on every device
+        long seed = 0x5076746278436463L;
+        for (int i = 0; i < gear.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            gear[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    /**
+     * Harder condition before average size and easier after it
+     */
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public Chunking(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chunk sizes: %s, %s, %s", minSize, avgSize, maxSize));
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+        maskSmall = highBits(bits + 1);
+        maskLarge = highBits(bits - 1);
+    }
+
+    private static long highBits(int count) {
+        return count <= 0 ? 0 : -1L << (64 - Math.min(count, 63));
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAvgSize() {
+        return avgSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Finds end of the chunk starting at offset. Data must contain at least
+     * max size bytes unless it is the end of file.
+     *
+     * @return chunk length
+     */
+    int cut(byte[] data, int offset, int length) {
+        if (length <= minSize) return length;
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, avgSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) return i + 1;
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) return i + 1;
+        }
+        return end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Chunking)) return false;
+        Chunking other = (Chunking) o;
+        return minSize == other.minSize && avgSize == other.avgSize && maxSize == other.maxSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return (minSize * 31 + avgSize) * 31 + maxSize;
+    }
+}
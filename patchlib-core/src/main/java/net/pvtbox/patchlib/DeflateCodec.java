@@ -0,0 +1,104 @@
+package net.pvtbox.patchlib;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Raw deflate, without zlib header and checksum, blocks are hashed anyway
+ */
+final class DeflateCodec extends BlockCodec {
+    static final int defaultLevel = Deflater.BEST_SPEED;
+
+    private static final byte[] padding = new byte[1];
+
+    private final int level;
+    // zlib streams are reused by every thread, allocating them per block is costly
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+    };
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(byte[] source, int offset, int length,
+                        byte[] destination, int destinationOffset, int destinationLength) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(source, offset, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == destinationLength) return -1;
+            size += deflater.deflate(
+                    destination, destinationOffset + size, destinationLength - size);
+        }
+        return size;
+    }
+
+    @Override
+    public void decompress(byte[] source, int offset, int length,
+                           byte[] destination, int destinationOffset, int destinationLength)
+            throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            inflater.setInput(source, offset, length);
+            boolean padded = false;
+            int size = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(
+                        destination, destinationOffset + size, destinationLength - size);
+                if (inflated == 0 && inflater.needsInput() && !padded) {
+                    // extra byte lets inflater finish the stream of nowrap mode
+                    inflater.setInput(padding);
+                    padded = true;
+                    continue;
+                }
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() ||
+                        size == destinationLength)) break;
+                size += inflated;
+            }
+            if (!inflater.finished() || size != destinationLength) {
+                throw new IOException("Invalid compressed patch block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+}
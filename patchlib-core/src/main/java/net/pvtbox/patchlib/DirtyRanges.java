@@ -0,0 +1,94 @@
+package net.pvtbox.patchlib;
+
+import java.util.Arrays;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Changed byte ranges of the file, kept sorted and merged
+ */
+@SuppressWarnings("WeakerAccess")
+public final class DirtyRanges {
+    private long[] starts = new long[4];
+    private long[] ends = new long[4];
+    private int count;
+
+    /**
+     * Marks length bytes at offset as changed
+     */
+    public DirtyRanges add(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + ", " + length);
+        }
+        if (length == 0) return this;
+        long end = offset + length;
+
+        // first range which ends at or after the start of new one
+        int first = 0;
+        while (first < count && ends[first] < offset) first++;
+        int last = first;
+        while (last < count && starts[last] <= end) last++;
+
+        if (first < last) {
+            offset = Math.min(offset, starts[first]);
+            end = Math.max(end, ends[last - 1]);
+        } else if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        int removed = last - first - 1;
+        System.arraycopy(starts, last, starts, last - removed, count - last);
+        System.arraycopy(ends, last, ends, last - removed, count - last);
+        count -= removed;
+        starts[first] = offset;
+        ends[first] = end;
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long startAt(int range) {
+        return starts[range];
+    }
+
+    public long endAt(int range) {
+        return ends[range];
+    }
+
+    /**
+     * @return true if any changed byte is within [start, end)
+     */
+    public boolean intersects(long start, long end) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] <= start) {
+                low = middle + 1;
+            } else if (starts[middle] >= end) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
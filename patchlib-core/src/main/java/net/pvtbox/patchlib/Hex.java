@@ -0,0 +1,65 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+final class Hex {
+    private static final char[] digits = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    static String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    static String encode(byte[] data, int offset, int length) {
+        char[] result = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            result[i * 2] = digits[(data[offset + i] >> 4) & 0xf];
+            result[i * 2 + 1] = digits[data[offset + i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Writes ASCII hex digits of data to the target at offset
+     */
+    static void encode(byte[] data, byte[] target, int offset) {
+        for (int i = 0; i < data.length; i++) {
+            target[offset + i * 2] = (byte) digits[(data[i] >> 4) & 0xf];
+            target[offset + i * 2 + 1] = (byte) digits[data[i] & 0xf];
+        }
+    }
+
+    static byte[] decode(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex string: " + hex);
+        }
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            result[i] = (byte) ((high << 4) | low);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package net.pvtbox.patchlib;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Error log of the library, core doesn't depend on Android
+ */
+final class Log {
+    private Log() {
+    }
+
+    static void e(String tag, String message) {
+        Logger.getLogger(tag).log(Level.SEVERE, message);
+    }
+
+    static void e(String tag, String message, Throwable throwable) {
+        Logger.getLogger(tag).log(Level.SEVERE, message, throwable);
+    }
+}
@@ -0,0 +1,122 @@
+package net.pvtbox.patchlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Comparison of the local tree with the tree of a peer, level by level from the root.
+ * On every level hashes of {@link #requestedNodes()} are requested from the peer,
+ * which gives them with {@link MerkleTree#nodeHashes}, and passed to {@link #received},
+ * only children of differing nodes are requested on the next level.
+ * Peer trees must be built for the same blocksize and block hash.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class MerkleComparison {
+    private final MerkleTree tree;
+    private final int blockCount;
+    private final ArrayList<long[]> ranges = new ArrayList<>();
+    private int level;
+    private int[] requested;
+
+    /**
+     * @param remoteBlockCount count of blocks of the peer tree
+     * @param remoteRootHash   root hash of the peer tree, null for empty file
+     */
+    public MerkleComparison(MerkleTree tree, int remoteBlockCount, String remoteRootHash) {
+        this.tree = tree;
+        blockCount = Math.max(tree.blockCount(), remoteBlockCount);
+        level = MerkleTree.height(blockCount);
+        requested = blockCount == 0 ? new int[0] : new int[]{0};
+        if (requested.length > 0) {
+            received(new String[]{remoteRootHash});
+        }
+    }
+
+    public boolean isDone() {
+        return requested.length == 0;
+    }
+
+    /**
+     * @return level of requested nodes
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * @return indexes of the nodes of the current level to request from the peer
+     */
+    public int[] requestedNodes() {
+        return requested;
+    }
+
+    /**
+     * @param hashes hashes of requested nodes in the peer tree, null for missing nodes
+     */
+    public void received(String[] hashes) {
+        if (hashes.length != requested.length) {
+            throw new IllegalArgumentException(String.format(
+                    "Expected %s hashes, received %s", requested.length, hashes.length));
+        }
+        int[] next = new int[requested.length * 2];
+        int count = 0;
+        for (int i = 0; i < requested.length; i++) {
+            int node = requested[i];
+            String hash = tree.nodeHash(level, node);
+            if (hash == null ? hashes[i] == null : hash.equalsIgnoreCase(hashes[i])) continue;
+            if (level == 0) {
+                addRange(node);
+                continue;
+            }
+            for (int child = node * 2; child <= node * 2 + 1; child++) {
+                if (((long) child << (level - 1)) < blockCount) {
+                    next[count++] = child;
+                }
+            }
+        }
+        requested = level == 0 ? new int[0] : Arrays.copyOf(next, count);
+        if (level > 0) {
+            level--;
+        }
+    }
+
+    /**
+     * @return ranges of differing blocks as {offset, end} pairs in order of offsets,
+     * end of the last range may be past the end of the file
+     */
+    public List<long[]> differingRanges() {
+        if (!isDone()) {
+            throw new IllegalStateException("Comparison is not done");
+        }
+        return ranges;
+    }
+
+    private void addRange(int block) {
+        long offset = (long) block * tree.blocksize();
+        long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[1] == offset) {
+            last[1] = offset + tree.blocksize();
+        } else {
+            ranges.add(new long[]{offset, offset + tree.blocksize()});
+        }
+    }
+}
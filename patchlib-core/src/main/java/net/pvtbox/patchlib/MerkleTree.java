@@ -0,0 +1,166 @@
+package net.pvtbox.patchlib;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Hash tree over blocks hashes of the file signed with fixed size blocks.
+ * Level 0 holds blocks hashes, node {@code i} of level {@code k} covers blocks
+ * from {@code i << k} to {@code (i + 1) << k} and its hash is taken from hashes
+ * of its two children, a node with one child has the hash of the child.
+ * Trees of peers are compared from the root down through differing nodes only,
+ * see {@link MerkleComparison}, so a few changed blocks are found by exchanging
+ * a number of hashes logarithmic in count of blocks.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class MerkleTree {
+    /**
+     * Prepended to children hashes, so hashes of nodes never match hashes of blocks
+     */
+    private static final byte nodePrefix = 1;
+
+    private final int blocksize;
+    private final int blockCount;
+    private final int digestLength;
+    // hashes of nodes of every level, level 0 is blocks hashes
+    private final byte[][] levels;
+
+    /**
+     * @param signature signature of the file taken with given hash and blocksize
+     */
+    public MerkleTree(BlockSignature signature, int blocksize, BlockHash hash)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = hash.newDigest();
+        if (signature.size() > 0 && digest.getDigestLength() != signature.digestLength()) {
+            throw new IllegalArgumentException(
+                    "Signature is not taken with block hash " + hash.name());
+        }
+        this.blocksize = blocksize;
+        blockCount = signature.size();
+        digestLength = digest.getDigestLength();
+
+        levels = new byte[height(blockCount) + 1][];
+        levels[0] = new byte[blockCount * digestLength];
+        for (int i = 0; i < blockCount; i++) {
+            signature.digestAt(i, levels[0], i * digestLength);
+        }
+        for (int level = 1; level < levels.length; level++) {
+            byte[] children = levels[level - 1];
+            int childCount = children.length / digestLength;
+            byte[] nodes = new byte[(childCount + 1) / 2 * digestLength];
+            for (int node = 0; node * 2 < childCount; node++) {
+                int child = node * 2 * digestLength;
+                if (node * 2 + 1 == childCount) {
+                    System.arraycopy(children, child, nodes, node * digestLength, digestLength);
+                    continue;
+                }
+                digest.update(nodePrefix);
+                digest.update(children, child, 2 * digestLength);
+                System.arraycopy(digest.digest(), 0, nodes, node * digestLength, digestLength);
+            }
+            levels[level] = nodes;
+        }
+    }
+
+    /**
+     * Same as {@link #MerkleTree(BlockSignature, int, BlockHash)} for blocks hashes
+     */
+    public static MerkleTree fromBlocksHashes(TreeMap<Long, String> blocksHashes,
+                                              int blocksize, BlockHash hash)
+            throws NoSuchAlgorithmException {
+        return new MerkleTree(BlockSignature.fromMap(blocksHashes), blocksize, hash);
+    }
+
+    /**
+     * Level of the root for given count of blocks
+     */
+    static int height(int blockCount) {
+        int height = 0;
+        while ((1L << height) < blockCount) {
+            height++;
+        }
+        return height;
+    }
+
+    public int blocksize() {
+        return blocksize;
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    public int height() {
+        return levels.length - 1;
+    }
+
+    /**
+     * @return hash of the root, null for empty file
+     */
+    public String rootHash() {
+        return nodeHash(height(), 0);
+    }
+
+    /**
+     * @return hash of the node, null if the tree has no such node.
+     * Nodes above the root are the root itself, so trees of different height
+     * are compared from the same level
+     */
+    public String nodeHash(int level, int index) {
+        if (index < 0 || ((long) index << Math.min(level, 62)) >= blockCount) return null;
+        if (level >= levels.length) {
+            level = levels.length - 1;
+        }
+        return Hex.encode(levels[level], index * digestLength, digestLength);
+    }
+
+    /**
+     * Hashes of the nodes requested by a peer comparing its tree with this one
+     */
+    public String[] nodeHashes(int level, int[] indexes) {
+        String[] hashes = new String[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            hashes[i] = nodeHash(level, indexes[i]);
+        }
+        return hashes;
+    }
+
+    /**
+     * Compares this tree with the tree of another version of the file
+     *
+     * @return ranges of differing blocks as {offset, end} pairs,
+     * end of the last range may be past the end of the file
+     */
+    public List<long[]> differingRanges(MerkleTree other) {
+        if (other.blocksize != blocksize) {
+            throw new IllegalArgumentException("Trees are built for different blocksize");
+        }
+        MerkleComparison comparison =
+                new MerkleComparison(this, other.blockCount, other.rootHash());
+        while (!comparison.isDone()) {
+            comparison.received(other.nodeHashes(
+                    comparison.level(), comparison.requestedNodes()));
+        }
+        return comparison.differingRanges();
+    }
+}
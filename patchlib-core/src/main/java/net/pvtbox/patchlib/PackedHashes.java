@@ -0,0 +1,72 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Hashes of patch blocks packed one after another in shared arrays,
+ * so blocks don't allocate an array for the hash each
+ */
+final class PackedHashes {
+    private final int digestLength;
+    private final int capacity;
+    private byte[] array;
+    private int used;
+
+    /**
+     * @param count expected count of hashes, arrays of that many hashes are allocated
+     */
+    PackedHashes(int digestLength, int count) {
+        this.digestLength = digestLength;
+        capacity = Math.max(1, count) * digestLength;
+    }
+
+    /**
+     * Copies the digest, it is at returned offset of {@link #array()} afterwards
+     */
+    int add(byte[] digest, int digestOffset) {
+        int offset = reserve();
+        System.arraycopy(digest, digestOffset, array, offset, digestLength);
+        return offset;
+    }
+
+    /**
+     * Reserves place for the next hash to be written in place
+     *
+     * @return offset of the hash in {@link #array()}
+     */
+    int reserve() {
+        if (array == null || used + digestLength > array.length) {
+            array = new byte[capacity];
+            used = 0;
+        }
+        used += digestLength;
+        return used - digestLength;
+    }
+
+    /**
+     * Array holding the last added hash
+     */
+    byte[] array() {
+        return array;
+    }
+
+    int digestLength() {
+        return digestLength;
+    }
+}
@@ -0,0 +1,3037 @@
+package net.pvtbox.patchlib;
+
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarInputStream;
+import org.xeustechnologies.jtar.TarOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+@SuppressWarnings("WeakerAccess")
+public final class Patch {
+    public static final int defaultBlockSize = 1024 * 1024;
+    private static final String TAG = "PvtboxPatch";
+    private static final String layoutRolling = "rolling";
+    static final String layoutChunks = "cdc";
+    /**
+     * Total size of block buffers of pipelined applying
+     */
+    private static final int pipelineBufferSize = 16 * 1024 * 1024;
+    private static final int pipelineMaxBuffers = 16;
+    /**
+     * Limit of blocks data merged into one extent, block data size is int
+     */
+    private static final int maxExtentSize = 1024 * 1024 * 1024;
+
+    private static volatile SignatureCache signatureCache;
+
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Sets cache used by {@link #blockSignature} and {@link #blocksHashes} to skip
+     * reading of files not changed since they were signed, null to disable caching
+     */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    public static String hashFromBlocksHashes(TreeMap<Long, String> blockHashes)
+            throws NoSuchAlgorithmException {
+        return hashFromBlocksHashes(blockHashes, BlockHash.md5);
+    }
+
+    /**
+     * Hash of the file from its blocks hashes, taken with given algorithm
+     */
+    public static String hashFromBlocksHashes(TreeMap<Long, String> blockHashes, BlockHash hash)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = hash.newDigest();
+
+        for (String blockHash : blockHashes.values()) {
+            digest.update(blockHash.getBytes());
+        }
+        return Hex.encode(digest.digest());
+    }
+
+    /**
+     * Same as {@link #hashFromBlocksHashes(TreeMap)} for signature in primitive form
+     */
+    public static String hashFromBlocksHashes(BlockSignature signature)
+            throws NoSuchAlgorithmException {
+        return hashFromBlocksHashes(signature, BlockHash.md5);
+    }
+
+    /**
+     * Same as {@link #hashFromBlocksHashes(TreeMap, BlockHash)} for signature in primitive form
+     */
+    public static String hashFromBlocksHashes(BlockSignature signature, BlockHash hash)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = hash.newDigest();
+
+        // same as hashing hex strings, without creating them
+        byte[] blockDigest = new byte[signature.digestLength()];
+        byte[] blockHash = new byte[signature.digestLength() * 2];
+        for (int i = 0; i < signature.size(); i++) {
+            signature.digestAt(i, blockDigest, 0);
+            Hex.encode(blockDigest, blockHash, 0);
+            digest.update(blockHash);
+        }
+        return Hex.encode(digest.digest());
+    }
+
+    public static TreeMap<Long, String> blocksHashes(String filePath, int blocksize) {
+        BlockSignature signature = blockSignature(filePath, blocksize);
+        return signature == null ? null : signature.toMap();
+    }
+
+    /**
+     * Same as {@link #blocksHashes(String, int)}, but ranges of blocks are hashed
+     * in parallel on given executor using positional reads of the file channel.
+     */
+    public static TreeMap<Long, String> blocksHashes(String filePath, int blocksize,
+                                                     ExecutorService executor) {
+        return blocksHashes(filePath, blocksize, executor, BlockHash.md5);
+    }
+
+    /**
+     * Same as {@link #blocksHashes(String, int, ExecutorService)}, blocks are hashed
+     * with given algorithm, executor can be null
+     */
+    public static TreeMap<Long, String> blocksHashes(String filePath, int blocksize,
+                                                     ExecutorService executor, BlockHash hash) {
+        return blocksHashes(filePath, blocksize, executor, hash, null);
+    }
+
+    /**
+     * Same as {@link #blocksHashes(String, int, ExecutorService, BlockHash)},
+     * timings and counters of signing are reported to the listener
+     */
+    public static TreeMap<Long, String> blocksHashes(String filePath, int blocksize,
+                                                     ExecutorService executor, BlockHash hash,
+                                                     PatchListener listener) {
+        return blocksHashes(filePath, blocksize, executor, hash, listener, null);
+    }
+
+    /**
+     * Same as {@link #blocksHashes(String, int, ExecutorService, BlockHash, PatchListener)},
+     * signing is stopped with {@link java.util.concurrent.CancellationException}
+     * once the token is cancelled
+     */
+    public static TreeMap<Long, String> blocksHashes(String filePath, int blocksize,
+                                                     ExecutorService executor, BlockHash hash,
+                                                     PatchListener listener,
+                                                     CancellationToken cancellation) {
+        BlockSignature signature = blockSignature(
+                filePath, blocksize, executor, hash, listener, cancellation);
+        return signature == null ? null : signature.toMap();
+    }
+
+    /**
+     * Block hashes of the file in primitive form, see {@link BlockSignature}
+     */
+    public static BlockSignature blockSignature(String filePath, int blocksize) {
+        return blockSignature(filePath, blocksize, null);
+    }
+
+    /**
+     * Same as {@link #blockSignature(String, int)}, but ranges of blocks are hashed
+     * in parallel on given executor using positional reads of the file channel.
+     */
+    public static BlockSignature blockSignature(String filePath, int blocksize,
+                                                ExecutorService executor) {
+        return blockSignature(filePath, blocksize, executor, BlockHash.md5);
+    }
+
+    /**
+     * Same as {@link #blockSignature(String, int, ExecutorService)}, blocks are hashed
+     * with given algorithm, executor can be null
+     */
+    public static BlockSignature blockSignature(String filePath, int blocksize,
+                                                ExecutorService executor, BlockHash hash) {
+        return blockSignature(filePath, blocksize, executor, hash, null);
+    }
+
+    /**
+     * Same as {@link #blockSignature(String, int, ExecutorService, BlockHash)},
+     * timings and counters of signing are reported to the listener
+     */
+    public static BlockSignature blockSignature(String filePath, int blocksize,
+                                                ExecutorService executor, BlockHash hash,
+                                                PatchListener listener) {
+        return blockSignature(filePath, blocksize, executor, hash, listener, null);
+    }
+
+    /**
+     * Same as {@link #blockSignature(String, int, ExecutorService, BlockHash, PatchListener)},
+     * signing is stopped with {@link java.util.concurrent.CancellationException}
+     * once the token is cancelled
+     */
+    public static BlockSignature blockSignature(String filePath, int blocksize,
+                                                ExecutorService executor, BlockHash hash,
+                                                PatchListener listener,
+                                                CancellationToken cancellation) {
+        listener = PatchListener.of(listener);
+        long started = System.nanoTime();
+        BlockSignature signature = cachedBlockSignature(
+                filePath, blocksize, executor, hash, listener, cancellation);
+        listener.onPhase(PatchListener.Phase.SIGN, System.nanoTime() - started);
+        return signature;
+    }
+
+    private static BlockSignature cachedBlockSignature(String filePath, int blocksize,
+                                                       ExecutorService executor, BlockHash hash,
+                                                       PatchListener listener,
+                                                       CancellationToken cancellation) {
+        SignatureCache cache = signatureCache;
+        if (cache == null) {
+            return readBlockSignature(filePath, blocksize, executor, hash, listener, cancellation);
+        }
+
+        SignatureCache.FileKey key = cache.fileKey(filePath);
+        BlockSignature signature = key == null ? null : cache.get(key, blocksize, hash);
+        if (signature != null) {
+            return signature;
+        }
+        signature = readBlockSignature(filePath, blocksize, executor, hash, listener, cancellation);
+        // file could change while it was read
+        if (signature != null && key != null && key.equals(cache.fileKey(filePath))) {
+            cache.put(key, blocksize, hash, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Block hashes of the file changed since previous hashes were taken,
+     * see {@link #updateBlockSignature(String, int, BlockSignature, DirtyRanges)}
+     */
+    public static TreeMap<Long, String> updateBlocksHashes(String filePath, int blocksize,
+                                                           TreeMap<Long, String> blocksHashes,
+                                                           DirtyRanges dirtyRanges) {
+        return updateBlocksHashes(filePath, blocksize, blocksHashes, dirtyRanges, BlockHash.md5);
+    }
+
+    public static TreeMap<Long, String> updateBlocksHashes(String filePath, int blocksize,
+                                                           TreeMap<Long, String> blocksHashes,
+                                                           DirtyRanges dirtyRanges,
+                                                           BlockHash hash) {
+        BlockSignature signature = updateBlockSignature(
+                filePath, blocksize, BlockSignature.fromMap(blocksHashes), dirtyRanges, hash);
+        return signature == null ? null : signature.toMap();
+    }
+
+    /**
+     * Signature of the file changed since previous signature was taken.
+     * Only blocks intersecting dirty ranges, previous and current last blocks
+     * and blocks after previous end of file are read and hashed again,
+     * so changes of the file length need no ranges.
+     * If only the length changed, e.g. on append, dirty ranges can be null.
+     */
+    public static BlockSignature updateBlockSignature(String filePath, int blocksize,
+                                                      BlockSignature signature,
+                                                      DirtyRanges dirtyRanges) {
+        return updateBlockSignature(filePath, blocksize, signature, dirtyRanges, BlockHash.md5);
+    }
+
+    /**
+     * Same as {@link #updateBlockSignature(String, int, BlockSignature, DirtyRanges)},
+     * previous signature must be taken with given algorithm
+     */
+    public static BlockSignature updateBlockSignature(String filePath, int blocksize,
+                                                      BlockSignature signature,
+                                                      DirtyRanges dirtyRanges,
+                                                      BlockHash hash) {
+        for (int i = 0; i < signature.size(); i++) {
+            if (signature.offsetAt(i) != (long) i * blocksize) {
+                throw new IllegalArgumentException("Signature blocks are not aligned to blocksize");
+            }
+        }
+        SignatureCache cache = signatureCache;
+        SignatureCache.FileKey key = cache == null ? null : cache.fileKey(filePath);
+
+        FileInputStream is;
+        try {
+            is = new FileInputStream(filePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            int blocks = (int) ((size + blocksize - 1) / blocksize);
+            int digestLength = signature.digestLength();
+            BlockSignature result = new BlockSignature(digestLength, blocks);
+            byte[] digest = new byte[digestLength];
+
+            int block = 0;
+            while (block < blocks) {
+                if (!isDirtyBlock(block, blocks, blocksize, signature, dirtyRanges)) {
+                    signature.digestAt(block, digest, 0);
+                    result.add((long) block * blocksize, digest, 0);
+                    block++;
+                    continue;
+                }
+                // consecutive dirty blocks are hashed in one pass
+                int end = block + 1;
+                while (end < blocks && isDirtyBlock(end, blocks, blocksize, signature, dirtyRanges)) {
+                    end++;
+                }
+                byte[] digests = rangeBlocksHashes(channel, (long) block * blocksize,
+                        Math.min(size, (long) end * blocksize), blocksize, hash, null);
+                for (int i = 0; i < digests.length; i += digestLength) {
+                    result.add((long) block * blocksize, digests, i);
+                    block++;
+                }
+            }
+
+            if (key != null && key.equals(cache.fileKey(filePath))) {
+                cache.put(key, blocksize, hash, result);
+            }
+            return result;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to process file for " + hash.name(), e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing " + hash.name() + " input stream", e);
+            }
+        }
+    }
+
+    private static boolean isDirtyBlock(int block, int blocks, int blocksize,
+                                        BlockSignature signature, DirtyRanges dirtyRanges) {
+        if (block >= signature.size()) return true;
+        // previous size is unknown, so last blocks could be appended or truncated
+        if (block == signature.size() - 1 || block == blocks - 1) return true;
+        return dirtyRanges != null &&
+                dirtyRanges.intersects((long) block * blocksize, (long) (block + 1) * blocksize);
+    }
+
+    /**
+     * Hashes of content defined chunks of the file, see {@link Chunking}
+     */
+    public static TreeMap<Long, String> chunksHashes(String filePath, Chunking chunking) {
+        return chunksHashes(filePath, chunking, BlockHash.md5);
+    }
+
+    public static TreeMap<Long, String> chunksHashes(String filePath, Chunking chunking,
+                                                     BlockHash hash) {
+        BlockSignature signature = chunkSignature(filePath, chunking, hash);
+        return signature == null ? null : signature.toMap();
+    }
+
+    /**
+     * Same as {@link #chunksHashes(String, Chunking)} in primitive form
+     */
+    public static BlockSignature chunkSignature(String filePath, Chunking chunking) {
+        return chunkSignature(filePath, chunking, BlockHash.md5);
+    }
+
+    public static BlockSignature chunkSignature(String filePath, Chunking chunking,
+                                                BlockHash hash) {
+        return chunkSignature(filePath, chunking, hash,
+                PatchListener.none, PatchListener.Source.FILE, null);
+    }
+
+    private static BlockSignature chunkSignature(String filePath, Chunking chunking,
+                                                 BlockHash hash, PatchListener listener,
+                                                 PatchListener.Source source,
+                                                 CancellationToken cancellation) {
+        MessageDigest digest;
+        try {
+            digest = hash.newDigest();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        InputStream is;
+        try {
+            is = new FileInputStream(filePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        long size = new File(filePath).length();
+        BlockSignature result = new BlockSignature(
+                digest.getDigestLength(), (int) (size / chunking.getAvgSize()) + 1);
+        // chunk end is searched in at least max size bytes
+        byte[] buffer = new byte[chunking.getMaxSize() * 2];
+        listener.onBufferAllocated(buffer.length);
+        byte[] chunkDigest = new byte[digest.getDigestLength()];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        long offset = 0L;
+        try {
+            while (true) {
+                if (!eof && end - start < chunking.getMaxSize()) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int read;
+                    while (end < buffer.length &&
+                            (read = is.read(buffer, end, buffer.length - end)) != -1) {
+                        end += read;
+                        listener.onRead(source, read);
+                    }
+                    eof = end < buffer.length;
+                }
+                if (start == end) break;
+
+                int length = chunking.cut(buffer, start, end - start);
+                digest.update(buffer, start, length);
+                digest(digest, chunkDigest, 0);
+                result.add(offset, chunkDigest, 0);
+                offset += length;
+                start += length;
+                progress(listener, cancellation, signingPhase(source), offset, size);
+            }
+
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to process file for " + hash.name(), e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing " + hash.name() + " input stream", e);
+            }
+        }
+    }
+
+    private static BlockSignature readBlockSignature(String filePath, int blocksize,
+                                                     BlockHash hash, PatchListener listener,
+                                                     PatchListener.Source source,
+                                                     CancellationToken cancellation) {
+        MessageDigest digest;
+        try {
+            digest = hash.newDigest();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        InputStream is;
+        try {
+            is = new FileInputStream(filePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+
+        long size = new File(filePath).length();
+        BlockSignature result = new BlockSignature(
+                digest.getDigestLength(), (int) ((size + blocksize - 1) / blocksize));
+        byte[] buffer = new byte[blocksize];
+        listener.onBufferAllocated(blocksize);
+        byte[] blockDigest = new byte[digest.getDigestLength()];
+        int read = 0;
+        long totalRead = 0;
+        long offset = 0L;
+        try {
+            while ((read += is.read(buffer, read, blocksize - read)) > 0) {
+                if (read < blocksize && totalRead + read != size) continue;
+                totalRead += read;
+                digest.update(buffer, 0, read);
+                digest(digest, blockDigest, 0);
+                result.add(offset, blockDigest, 0);
+                offset += read;
+                read = 0;
+                progress(listener, cancellation, signingPhase(source), offset, size);
+            }
+
+            listener.onRead(source, totalRead);
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to process file for " + hash.name(), e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing " + hash.name() + " input stream", e);
+            }
+        }
+    }
+
+    private static BlockSignature readBlockSignature(String filePath, final int blocksize,
+                                                     ExecutorService executor,
+                                                     final BlockHash hash,
+                                                     PatchListener listener,
+                                                     final CancellationToken cancellation) {
+        if (executor == null) {
+            return readBlockSignature(filePath, blocksize, hash, listener,
+                    PatchListener.Source.FILE, cancellation);
+        }
+
+        final int digestLength;
+        try {
+            digestLength = hash.newDigest().getDigestLength();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Exception while getting digest", e);
+            return null;
+        }
+
+        FileInputStream is;
+        try {
+            is = new FileInputStream(filePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        final FileChannel channel = is.getChannel();
+        ArrayList<Future<byte[]>> futures = new ArrayList<>();
+        try {
+            final long size = channel.size();
+            long blocks = (size + blocksize - 1) / blocksize;
+            long tasks = Math.min(blocks, Runtime.getRuntime().availableProcessors() * 4L);
+            long blocksPerTask = tasks == 0 ? 0 : (blocks + tasks - 1) / tasks;
+
+            for (long first = 0; first < blocks; first += blocksPerTask) {
+                final long start = first * blocksize;
+                final long end = Math.min(size, (first + blocksPerTask) * blocksize);
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return rangeBlocksHashes(channel, start, end, blocksize, hash, cancellation);
+                    }
+                }));
+                // every task hashes its range through own buffer
+                listener.onBufferAllocated(blocksize);
+            }
+
+            BlockSignature result = new BlockSignature(digestLength, (int) blocks);
+            long offset = 0L;
+            for (Future<byte[]> future : futures) {
+                byte[] digests = future.get();
+                for (int i = 0; i < digests.length; i += digestLength) {
+                    result.add(offset, digests, i);
+                    offset += blocksize;
+                }
+                progress(listener, cancellation, PatchListener.Phase.SIGN,
+                        Math.min(offset, size), size);
+            }
+
+            listener.onRead(PatchListener.Source.FILE, size);
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new RuntimeException("Unable to process file for " + hash.name(), e);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to process file for " + hash.name(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing file for " + hash.name(), e);
+        } finally {
+            for (Future<byte[]> future : futures) {
+                future.cancel(true);
+            }
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing " + hash.name() + " input stream", e);
+            }
+        }
+    }
+
+    /**
+     * @return digests of the range blocks packed one after another
+     */
+    private static byte[] rangeBlocksHashes(FileChannel channel, long start, long end,
+                                            int blocksize, BlockHash hash,
+                                            CancellationToken cancellation)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = hash.newDigest();
+        int digestLength = digest.getDigestLength();
+        ByteBuffer buffer = ByteBuffer.allocate(blocksize);
+        byte[] result = new byte[(int) ((end - start + blocksize - 1) / blocksize) * digestLength];
+        long position = start;
+        for (int i = 0; i < result.length; i += digestLength) {
+            if (cancellation != null) {
+                cancellation.throwIfCancelled();
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(blocksize, end - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+            digest(digest, result, i);
+            position += buffer.position();
+        }
+        return result;
+    }
+
+    /**
+     * Weak rolling checksums of all full size blocks of the file,
+     * partial trailing block is omitted since it can only match at the end of file.
+     * Used with block hashes to find old blocks at any offset of the new file.
+     */
+    public static TreeMap<Long, Integer> rollingHashes(String filePath, int blocksize) {
+        InputStream is;
+        try {
+            is = new FileInputStream(filePath);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Exception while getting FileInputStream", e);
+            return null;
+        }
+
+        TreeMap<Long, Integer> result = new TreeMap<>();
+        byte[] buffer = new byte[blocksize];
+        long offset = 0L;
+        try {
+            while (true) {
+                int read = 0;
+                int readLast;
+                while (read < blocksize && (readLast = is.read(buffer, read, blocksize - read)) > 0) {
+                    read += readLast;
+                }
+                if (read < blocksize) break;
+                result.put(offset, RollingChecksum.of(buffer, 0, blocksize));
+                offset += blocksize;
+            }
+
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to process file for rolling checksums", e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception on closing rolling checksums input stream", e);
+            }
+        }
+    }
+
+    public static Map createPatch(String filePath, String patchFilePath,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  int blocksize)
+            throws IOException, NoSuchAlgorithmException {
+        return createPatch(filePath, patchFilePath, fileHash, blocksHashes,
+                oldFileHash, oldBlocksHashes, null, blocksize);
+    }
+
+    /**
+     * Creates patch, old blocks are searched at any offset of the new file
+     * when rolling checksums of the old file are given,
+     * so data inserted or removed in the middle doesn't make the whole tail new.
+     */
+    public static Map createPatch(String filePath, String patchFilePath,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize)
+            throws IOException, NoSuchAlgorithmException {
+        return createPatch(filePath, patchFilePath, fileHash, blocksHashes,
+                oldFileHash, oldBlocksHashes, oldRollingHashes, blocksize, null);
+    }
+
+    public static Map createPatch(String filePath, String patchFilePath,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize, PatchOptions options)
+            throws IOException, NoSuchAlgorithmException {
+        FileOutputStream patchFile = new FileOutputStream(patchFilePath);
+        try {
+            return createPatch(filePath, patchFile, fileHash, blocksHashes,
+                    oldFileHash, oldBlocksHashes, oldRollingHashes, blocksize, options);
+        } catch (CancellationException e) {
+            patchFile.close();
+            //noinspection ResultOfMethodCallIgnored
+            new File(patchFilePath).delete();
+            throw e;
+        } finally {
+            patchFile.close();
+        }
+    }
+
+    /**
+     * Same as {@link #createPatch(String, OutputStream, String, TreeMap, String, TreeMap, TreeMap, int)},
+     * patch is written to the channel.
+     */
+    public static Map createPatch(String filePath, WritableByteChannel patchChannel,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize)
+            throws IOException, NoSuchAlgorithmException {
+        return createPatch(filePath, patchChannel, fileHash, blocksHashes,
+                oldFileHash, oldBlocksHashes, oldRollingHashes, blocksize, null);
+    }
+
+    /**
+     * Same as {@link #createPatch(String, OutputStream, String, TreeMap, String, TreeMap, TreeMap, int, PatchOptions)},
+     * patch is written to the channel.
+     */
+    public static Map createPatch(String filePath, WritableByteChannel patchChannel,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize, PatchOptions options)
+            throws IOException, NoSuchAlgorithmException {
+        return createPatch(filePath, Channels.newOutputStream(patchChannel), fileHash, blocksHashes,
+                oldFileHash, oldBlocksHashes, oldRollingHashes, blocksize, options);
+    }
+
+    /**
+     * Creates patch and writes it to the stream as it is produced.
+     * Info goes first and new blocks are copied from the file straight to the "data" entry,
+     * so no temporary file is needed. Stream is flushed, but not closed.
+     */
+    public static Map createPatch(String filePath, OutputStream patchStream,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize)
+            throws IOException, NoSuchAlgorithmException {
+        return createPatch(filePath, patchStream, fileHash, blocksHashes,
+                oldFileHash, oldBlocksHashes, oldRollingHashes, blocksize, null);
+    }
+
+    /**
+     * Same as {@link #createPatch(String, OutputStream, String, TreeMap, String, TreeMap, TreeMap, int)}
+     * with options of the patch.
+     */
+    public static Map createPatch(String filePath, OutputStream patchStream,
+                                  String fileHash, TreeMap<Long, String> blocksHashes,
+                                  String oldFileHash, TreeMap<Long, String> oldBlocksHashes,
+                                  TreeMap<Long, Integer> oldRollingHashes,
+                                  int blocksize, PatchOptions options)
+            throws IOException, NoSuchAlgorithmException {
+        return createSignaturePatch(filePath, patchStream, fileHash,
+                blocksHashes == null ? null : BlockSignature.fromMap(blocksHashes),
+                oldFileHash,
+                oldBlocksHashes == null ? null : BlockSignature.fromMap(oldBlocksHashes),
+                oldRollingHashes, blocksize, options);
+    }
+
+    /**
+     * Same as {@link #createPatch(String, OutputStream, String, TreeMap, String, TreeMap, TreeMap, int, PatchOptions)}
+     * for signatures in primitive form.
+     */
+    public static Map createSignaturePatch(String filePath, OutputStream patchStream,
+                                           String fileHash, BlockSignature signature,
+                                           String oldFileHash, BlockSignature oldSignature,
+                                           TreeMap<Long, Integer> oldRollingHashes,
+                                           int blocksize, PatchOptions options)
+            throws IOException, NoSuchAlgorithmException {
+        if (options == null) {
+            options = new PatchOptions();
+        }
+        BlockHash hash = options.getBlockHash();
+        Chunking chunking = options.getChunking();
+        PatchListener listener = PatchListener.of(options.getListener());
+        CancellationToken cancellation = options.getCancellation();
+        if (chunking != null) {
+            // chunks are found by content, blocksize only limits their size
+            blocksize = chunking.getMaxSize();
+            oldRollingHashes = null;
+        }
+        long started = System.nanoTime();
+        if (signature == null) {
+            signature = chunking == null ?
+                    cachedBlockSignature(filePath, blocksize, null, hash, listener, cancellation) :
+                    chunkSignature(filePath, chunking, hash, listener, PatchListener.Source.FILE,
+                            cancellation);
+            listener.onPhase(PatchListener.Phase.SIGN, System.nanoTime() - started);
+            started = System.nanoTime();
+        }
+        if (fileHash == null) {
+            assert signature != null;
+            fileHash = hashFromBlocksHashes(signature, hash);
+        }
+
+        File file = new File(filePath);
+        long size = file.length();
+
+        boolean rolling = oldRollingHashes != null && oldSignature != null;
+        // blocks of the file grown at the end stay in place,
+        // the end is not copied from blocks past them, so it can be rewritten in place
+        int kept = rolling || chunking != null || oldSignature == null ? 0 :
+                keptBlocks(Objects.requireNonNull(signature), oldSignature);
+        PatchManifest manifest = new PatchManifest(rolling ?
+                createRollingPatchBlocks(
+                        filePath, oldSignature, oldRollingHashes, blocksize, hash,
+                        listener, cancellation) :
+                createPatchBlocks(
+                        size, Objects.requireNonNull(signature), oldSignature, blocksize,
+                        chunking != null, kept));
+        manifest.newHash = fileHash;
+        manifest.oldHash = oldFileHash;
+        manifest.blocksize = blocksize;
+        manifest.size = size;
+        manifest.timeModify = file.lastModified();
+        manifest.hash = hash;
+        if (rolling) {
+            manifest.layout = layoutRolling;
+        } else if (chunking != null) {
+            manifest.layout = layoutChunks;
+            manifest.chunking = chunking;
+        }
+        if (options.isZeroBlocks()) {
+            zeroBlocks(manifest, new ZeroBlocks(hash), kept);
+        }
+        reportBlocks(manifest, listener);
+        listener.onPhase(PatchListener.Phase.DIFF, System.nanoTime() - started);
+
+        File compressedDataFile = null;
+        try {
+            if (options.getCodec() != null) {
+                // sizes of compressed blocks go to the manifest before data
+                started = System.nanoTime();
+                compressedDataFile = File.createTempFile("data", null);
+                compressBlocks(file, manifest, new BlockCompressor(options.getCodec()),
+                        compressedDataFile, listener, cancellation);
+                listener.onPhase(PatchListener.Phase.COMPRESS, System.nanoTime() - started);
+            }
+            if (options.isCoalesceBlocks()) {
+                coalesceBlocks(manifest, kept);
+            }
+
+            started = System.nanoTime();
+            TarOutputStream out = startPatch(
+                    patchStream, manifest, options.getManifestFormat(), listener);
+            long dataSize = dataSize(manifest);
+
+            byte[] data = new byte[defaultBlockSize];
+            listener.onBufferAllocated(data.length);
+            if (compressedDataFile != null) {
+                writeDataFile(out, compressedDataFile, dataSize, data, listener, cancellation);
+            } else {
+                long written = 0;
+                FileInputStream fileStream = new FileInputStream(file);
+                try {
+                    FileChannel fileChannel = fileStream.getChannel();
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    for (PatchBlock block : manifest.blocks) {
+                        if (block.kind != PatchBlock.NEW) continue;
+
+                        long position = block.offset;
+                        long end = position + block.dataSize;
+                        while (position < end) {
+                            buffer.clear();
+                            buffer.limit((int) Math.min(data.length, end - position));
+                            int read = fileChannel.read(buffer, position);
+                            if (read < 0) {
+                                throw new IOException("File changed while creating patch");
+                            }
+                            listener.onRead(PatchListener.Source.FILE, read);
+                            out.write(data, 0, read);
+                            position += read;
+                        }
+                        written += block.dataSize;
+                        progress(listener, cancellation, PatchListener.Phase.WRITE,
+                                written, dataSize);
+                    }
+                } finally {
+                    fileStream.close();
+                }
+            }
+
+            out.flush();
+            out.close();
+            listener.onPhase(PatchListener.Phase.WRITE, System.nanoTime() - started);
+        } finally {
+            if (compressedDataFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                compressedDataFile.delete();
+            }
+        }
+        return manifest.toMap();
+    }
+
+    private static long dataSize(PatchManifest manifest) {
+        long dataSize = 0;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.kind == PatchBlock.NEW) {
+                dataSize += block.storedSize(manifest.blocksize);
+            }
+        }
+        return dataSize;
+    }
+
+    /**
+     * Writes manifest entry of the patch and starts its "data" entry
+     *
+     * @return tar stream to write data of new blocks to, patch stream is not closed with it
+     */
+    private static TarOutputStream startPatch(OutputStream patchStream, PatchManifest manifest,
+                                              ManifestFormat format,
+                                              final PatchListener listener)
+            throws IOException {
+        byte[] info;
+        TarEntry infoEntry;
+        if (format == ManifestFormat.BINARY || manifest.hasZeroBlocks()) {
+            info = manifest.toBinary();
+            infoEntry = new TarEntry(new File(""), PatchManifest.manifestEntryName);
+        } else {
+            info = manifest.toJson();
+            infoEntry = new TarEntry(new File(""), PatchManifest.infoEntryName);
+        }
+
+        TarOutputStream out = new TarOutputStream(new BufferedOutputStream(
+                new FilterOutputStream(patchStream) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                        listener.onWrite(PatchListener.Source.PATCH, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                }));
+
+        infoEntry.setSize(info.length);
+        out.putNextEntry(infoEntry);
+        out.write(info);
+
+        TarEntry dataEntry = new TarEntry(new File(""), "data");
+        dataEntry.setSize(dataSize(manifest));
+        out.putNextEntry(dataEntry);
+        return out;
+    }
+
+    /**
+     * Copies data of new blocks staged in temporary file to the patch
+     */
+    private static void writeDataFile(TarOutputStream out, File dataFile, long dataSize,
+                                      byte[] data, PatchListener listener,
+                                      CancellationToken cancellation)
+            throws IOException {
+        FileInputStream dataStream = new FileInputStream(dataFile);
+        try {
+            long written = 0;
+            int count;
+            while ((count = dataStream.read(data)) != -1) {
+                listener.onRead(PatchListener.Source.TEMP, count);
+                out.write(data, 0, count);
+                written += count;
+                progress(listener, cancellation, PatchListener.Phase.WRITE, written, dataSize);
+            }
+        } finally {
+            dataStream.close();
+        }
+    }
+
+    /**
+     * Result is signed again when it is verified
+     */
+    private static PatchListener.Phase signingPhase(PatchListener.Source source) {
+        return source == PatchListener.Source.RESULT ?
+                PatchListener.Phase.VERIFY : PatchListener.Phase.SIGN;
+    }
+
+    /**
+     * Completes the digest into the target at offset, without allocating the result
+     */
+    private static void digest(MessageDigest digest, byte[] target, int offset)
+            throws IOException {
+        try {
+            digest.digest(target, offset, digest.getDigestLength());
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reports progress of the phase, stops the operation if it is cancelled
+     */
+    private static void progress(PatchListener listener, CancellationToken cancellation,
+                                 PatchListener.Phase phase, long done, long total) {
+        if (cancellation != null) {
+            cancellation.throwIfCancelled();
+        }
+        listener.onProgress(phase, done, total);
+    }
+
+    private static void reportBlocks(PatchManifest manifest, PatchListener listener) {
+        if (listener == PatchListener.none) return;
+        for (PatchBlock block : manifest.blocks) {
+            listener.onBlock(PatchListener.blockKind(block.kind), (int) Math.min(
+                    block.dataSize(manifest.blocksize), manifest.size - block.offset));
+        }
+    }
+
+    /**
+     * Replaces blocks of zeros, found by their hashes, with zero blocks without data,
+     * and moves data of the rest of new blocks to fill the gaps.
+     *
+     * @param kept count of leading blocks kept in place, they stay as is
+     */
+    private static void zeroBlocks(PatchManifest manifest, ZeroBlocks zeroBlocks, int kept)
+            throws NoSuchAlgorithmException {
+        long dataOffset = 0;
+        for (int i = kept; i < manifest.blocks.size(); i++) {
+            PatchBlock block = manifest.blocks.get(i);
+            int size = (int) Math.max(0, Math.min(
+                    block.dataSize(manifest.blocksize), manifest.size - block.offset));
+            if (zeroBlocks.isZero(block, size)) {
+                manifest.blocks.set(i, block.moved(PatchBlock.ZERO, 0, size, null, -1));
+            } else if (block.kind == PatchBlock.NEW) {
+                manifest.blocks.set(i, block.moved(
+                        PatchBlock.NEW, dataOffset, block.dataSize, null, -1));
+                dataOffset += block.dataSize;
+            }
+        }
+    }
+
+    /**
+     * Merges runs of blocks copied from contiguous data of the old file, and runs of raw
+     * new blocks with contiguous data, into extents, so the patch is applied with
+     * a large sequential copy per changed region. Blocks other blocks are copied from
+     * are kept as is. Runs of zero blocks are merged as well.
+     * Merged blocks have no hash, so the result is checked
+     * by the whole file hash, same as for rolling layout.
+     *
+     * @param kept count of leading blocks kept in place, they stay as is with their hashes,
+     *             so the start of the file is not read again when the patch is applied in place
+     */
+    private static void coalesceBlocks(PatchManifest manifest, int kept) {
+        long[] sources = new long[manifest.blocks.size()];
+        int sourcesCount = 0;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.kind == PatchBlock.FROM_PATCH) {
+                sources[sourcesCount++] = block.sourceOffset;
+            }
+        }
+        Arrays.sort(sources, 0, sourcesCount);
+
+        ArrayList<PatchBlock> blocks = new ArrayList<>(manifest.blocks.subList(0, kept));
+        PatchBlock run = null;
+        long runSize = 0;
+        int runBlocks = 0;
+        for (PatchBlock block : manifest.blocks.subList(kept, manifest.blocks.size())) {
+            long size = Math.min(block.dataSize(manifest.blocksize), manifest.size - block.offset);
+            if (run != null && block.kind == run.kind &&
+                    (block.kind == PatchBlock.FROM_OLD || block.kind == PatchBlock.ZERO ||
+                            (block.kind == PatchBlock.NEW &&
+                                    block.codec == null && run.codec == null)) &&
+                    block.offset == run.offset + runSize &&
+                    (block.kind == PatchBlock.ZERO ||
+                            block.sourceOffset == run.sourceOffset + runSize) &&
+                    runSize + size <= maxExtentSize &&
+                    Arrays.binarySearch(sources, 0, sourcesCount, run.offset) < 0 &&
+                    Arrays.binarySearch(sources, 0, sourcesCount, block.offset) < 0) {
+                runSize += size;
+                runBlocks++;
+                continue;
+            }
+            if (run != null) {
+                blocks.add(runBlocks == 1 ? run : new PatchBlock(
+                        run.offset, run.kind, run.sourceOffset, (int) runSize, null));
+            }
+            run = block;
+            runSize = size;
+            runBlocks = 1;
+        }
+        if (run != null) {
+            blocks.add(runBlocks == 1 ? run : new PatchBlock(
+                    run.offset, run.kind, run.sourceOffset, (int) runSize, null));
+        }
+
+        if (blocks.size() < manifest.blocks.size()) {
+            manifest.blocks.clear();
+            manifest.blocks.addAll(blocks);
+            manifest.layout = layoutRolling;
+        }
+    }
+
+    /**
+     * Writes data of new blocks to the file, compressed where it makes them smaller,
+     * and replaces new blocks of the manifest with blocks pointing to that data.
+     */
+    private static void compressBlocks(File file, PatchManifest manifest,
+                                       BlockCompressor compressor, File dataFile,
+                                       PatchListener listener, CancellationToken cancellation)
+            throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        BufferedOutputStream dataStream = new BufferedOutputStream(
+                new FileOutputStream(dataFile, false));
+        try {
+            FileChannel fileChannel = fileStream.getChannel();
+            byte[] data = new byte[0];
+            long dataOffset = 0;
+            for (int i = 0; i < manifest.blocks.size(); i++) {
+                PatchBlock block = manifest.blocks.get(i);
+                if (block.kind != PatchBlock.NEW) continue;
+
+                if (data.length < block.dataSize) {
+                    data = new byte[block.dataSize];
+                    listener.onBufferAllocated(data.length);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, block.dataSize);
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer, block.offset + buffer.position()) < 0) {
+                        throw new IOException("File changed while creating patch");
+                    }
+                }
+                listener.onRead(PatchListener.Source.FILE, block.dataSize);
+
+                byte[] compressed = compressor.buffer();
+                int storedSize = compressor.compress(data, 0, block.dataSize);
+                if (compressor.buffer() != compressed) {
+                    listener.onBufferAllocated(compressor.buffer().length);
+                }
+                String codec = null;
+                if (storedSize < 0) {
+                    storedSize = block.dataSize;
+                    dataStream.write(data, 0, block.dataSize);
+                } else {
+                    codec = compressor.codecName();
+                    dataStream.write(compressor.buffer(), 0, storedSize);
+                }
+                manifest.blocks.set(i, block.moved(
+                        PatchBlock.NEW, dataOffset, block.dataSize,
+                        codec, codec == null ? -1 : storedSize));
+                dataOffset += storedSize;
+                listener.onWrite(PatchListener.Source.TEMP, storedSize);
+                progress(listener, cancellation, PatchListener.Phase.COMPRESS,
+                        block.offset + block.dataSize, manifest.size);
+            }
+        } finally {
+            dataStream.close();
+            fileStream.close();
+        }
+    }
+
+    /**
+     * @param chunked blocks of signatures have variable size, size of every block is stored
+     * @param kept      count of leading blocks kept in place, see {@link #keptBlocks}
+     */
+    private static ArrayList<PatchBlock> createPatchBlocks(long size,
+                                                           BlockSignature signature,
+                                                           BlockSignature oldSignature,
+                                                           int blocksize, boolean chunked,
+                                                           int kept) {
+        // new blocks written to the patch data, by digest
+        BlockSignature patchSignature = new BlockSignature(signature.digestLength(), 16);
+
+        ArrayList<PatchBlock> patch = new ArrayList<>(signature.size());
+        int digestLength = signature.digestLength();
+        // hashes of all blocks in one array
+        byte[] hashes = new byte[signature.size() * digestLength];
+
+        long dataFileOffset = 0;
+
+        // kept blocks go one per block with their hashes, so the signature of the result
+        // is built from the manifest, and the end is not copied from blocks past them
+        for (int i = 0; i < kept; i++) {
+            int hash = i * digestLength;
+            signature.digestAt(i, hashes, hash);
+            patch.add(new PatchBlock(
+                    signature.offsetAt(i), PatchBlock.FROM_OLD, signature.offsetAt(i), -1,
+                    hashes, hash, digestLength, null, -1));
+        }
+
+        for (int i = kept; i < signature.size(); i++) {
+            long offset = signature.offsetAt(i);
+            int hash = i * digestLength;
+            signature.digestAt(i, hashes, hash);
+            long end = i + 1 < signature.size() ? signature.offsetAt(i + 1) : size;
+            int data_size = (int) Math.max(0, Math.min(blocksize, end - offset));
+
+            int block;
+            if ((block = patchSignature.indexOf(hashes, hash)) >= 0) {
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.FROM_PATCH, patchSignature.offsetAt(block),
+                        chunked ? data_size : -1, hashes, hash, digestLength, null, -1));
+            } else if (oldSignature != null &&
+                    (block = oldSignature.indexOf(hashes, hash)) >= 0 &&
+                    (kept == 0 || block < kept)) {
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.FROM_OLD, oldSignature.offsetAt(block),
+                        chunked ? data_size : -1, hashes, hash, digestLength, null, -1));
+            } else {
+                // data itself is copied from the file when patch is written
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.NEW, dataFileOffset, data_size,
+                        hashes, hash, digestLength, null, -1));
+                dataFileOffset += data_size;
+                patchSignature.add(offset, hashes, hash);
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * @return count of leading blocks same as blocks of the old file at the same offsets,
+     * if the old file is the start of the file apart from its last block, otherwise 0
+     */
+    private static int keptBlocks(BlockSignature signature, BlockSignature oldSignature) {
+        byte[] digest = new byte[signature.digestLength()];
+        int count = Math.min(signature.size(), oldSignature.size());
+        for (int i = 0; i < count; i++) {
+            signature.digestAt(i, digest, 0);
+            if (signature.offsetAt(i) != oldSignature.offsetAt(i) ||
+                    !oldSignature.digestEquals(i, digest, 0)) {
+                return i >= oldSignature.size() - 1 ? i : 0;
+            }
+        }
+        return count;
+    }
+
+    private static ArrayList<PatchBlock> createRollingPatchBlocks(String filePath,
+                                                                  BlockSignature oldSignature,
+                                                                  TreeMap<Long, Integer> oldRollingHashes,
+                                                                  int blocksize, BlockHash blockHash,
+                                                                  PatchListener listener,
+                                                                  CancellationToken cancellation)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = blockHash.newDigest();
+        RollingIndex oldRollingSearch = new RollingIndex(oldRollingHashes.size());
+        for (Map.Entry<Long, Integer> entry : oldRollingHashes.entrySet()) {
+            int block = oldSignature.indexOfOffset(entry.getKey());
+            if (block < 0) continue;
+            oldRollingSearch.add(entry.getValue(), block);
+        }
+        // digest of the window, copied only when it matches an old block
+        byte[] windowDigest = new byte[digest.getDigestLength()];
+        BlockSignature patchSignature = new BlockSignature(digest.getDigestLength(), 16);
+        PackedHashes hashes = new PackedHashes(digest.getDigestLength(), 1024);
+
+        ArrayList<PatchBlock> patch = new ArrayList<>();
+        long[] dataFileOffset = {0};
+
+        FileInputStream file = new FileInputStream(filePath);
+        try {
+            long size = file.getChannel().size();
+            // window [pos, pos + blocksize) is searched in old blocks,
+            // bytes [literalStart, pos) didn't match and go to the patch as is
+            byte[] buffer = new byte[blocksize * 3];
+            listener.onBufferAllocated(buffer.length);
+            long bufferStart = 0;
+            int bufferLength = 0;
+            long pos = 0;
+            long literalStart = 0;
+            RollingChecksum checksum = new RollingChecksum(blocksize);
+            boolean checksumValid = false;
+
+            while (pos + blocksize <= size) {
+                if (pos + blocksize + 1 > bufferStart + bufferLength &&
+                        bufferStart + bufferLength < size) {
+                    progress(listener, cancellation, PatchListener.Phase.DIFF, pos, size);
+                    int keep = (int) (bufferStart + bufferLength - literalStart);
+                    System.arraycopy(
+                            buffer, (int) (literalStart - bufferStart), buffer, 0, keep);
+                    bufferStart = literalStart;
+                    bufferLength = keep;
+                    int read;
+                    while (bufferLength < buffer.length &&
+                            (read = file.read(buffer, bufferLength, buffer.length - bufferLength)) > 0) {
+                        bufferLength += read;
+                    }
+                }
+                int window = (int) (pos - bufferStart);
+                if (!checksumValid) {
+                    checksum.reset(buffer, window);
+                    checksumValid = true;
+                }
+
+                int oldBlock = -1;
+                int candidate = oldRollingSearch.first(checksum.value());
+                if (candidate >= 0) {
+                    digest.update(buffer, window, blocksize);
+                    digest(digest, windowDigest, 0);
+                    for (; candidate >= 0; candidate = oldRollingSearch.next(candidate)) {
+                        if (oldSignature.digestEquals(
+                                oldRollingSearch.block(candidate), windowDigest, 0)) {
+                            oldBlock = oldRollingSearch.block(candidate);
+                            break;
+                        }
+                    }
+                }
+
+                if (oldBlock >= 0) {
+                    addLiteralBlocks(patch, buffer, bufferStart, literalStart, pos,
+                            blocksize, digest, oldSignature, patchSignature, hashes,
+                            dataFileOffset);
+                    int hash = hashes.add(windowDigest, 0);
+                    patch.add(new PatchBlock(
+                            pos, PatchBlock.FROM_OLD, oldSignature.offsetAt(oldBlock), blocksize,
+                            hashes.array(), hash, windowDigest.length, null, -1));
+                    pos += blocksize;
+                    literalStart = pos;
+                    checksumValid = false;
+                    continue;
+                }
+
+                if (pos + 1 - literalStart == blocksize) {
+                    addLiteralBlocks(patch, buffer, bufferStart, literalStart, pos + 1,
+                            blocksize, digest, oldSignature, patchSignature, hashes,
+                            dataFileOffset);
+                    literalStart = pos + 1;
+                }
+                if (pos + blocksize < size) {
+                    checksum.roll(buffer[window], buffer[window + blocksize]);
+                }
+                pos++;
+            }
+
+            if (literalStart < size) {
+                int keep = (int) (bufferStart + bufferLength - literalStart);
+                System.arraycopy(
+                        buffer, (int) (literalStart - bufferStart), buffer, 0, keep);
+                bufferStart = literalStart;
+                bufferLength = keep;
+                int read;
+                while (bufferLength < buffer.length &&
+                        (read = file.read(buffer, bufferLength, buffer.length - bufferLength)) > 0) {
+                    bufferLength += read;
+                }
+                addLiteralBlocks(patch, buffer, bufferStart, literalStart, size,
+                        blocksize, digest, oldSignature, patchSignature, hashes,
+                        dataFileOffset);
+            }
+            listener.onRead(PatchListener.Source.FILE, size);
+        } finally {
+            file.close();
+        }
+        return patch;
+    }
+
+    private static void addLiteralBlocks(ArrayList<PatchBlock> patch,
+                                         byte[] buffer, long bufferStart, long start, long end,
+                                         int blocksize, MessageDigest digest,
+                                         BlockSignature oldSignature,
+                                         BlockSignature patchSignature,
+                                         PackedHashes hashes,
+                                         long[] dataFileOffset) throws IOException {
+        int digestLength = hashes.digestLength();
+        for (long offset = start; offset < end; offset += blocksize) {
+            int position = (int) (offset - bufferStart);
+            int dataSize = (int) Math.min(blocksize, end - offset);
+            digest.update(buffer, position, dataSize);
+            int hash = hashes.reserve();
+            byte[] array = hashes.array();
+            digest(digest, array, hash);
+
+            int block;
+            if ((block = patchSignature.indexOf(array, hash)) >= 0) {
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.FROM_PATCH, patchSignature.offsetAt(block), dataSize,
+                        array, hash, digestLength, null, -1));
+            } else if ((block = oldSignature.indexOf(array, hash)) >= 0) {
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.FROM_OLD, oldSignature.offsetAt(block), dataSize,
+                        array, hash, digestLength, null, -1));
+            } else {
+                patch.add(new PatchBlock(
+                        offset, PatchBlock.NEW, dataFileOffset[0], dataSize,
+                        array, hash, digestLength, null, -1));
+                dataFileOffset[0] += dataSize;
+                patchSignature.add(offset, array, hash);
+            }
+        }
+    }
+
+    public static ArrayList acceptPatch(String filePath, String resultPath, String patchFilePath, String fileHash)
+            throws IOException {
+        return acceptPatch(filePath, resultPath, patchFilePath, fileHash, null);
+    }
+
+    public static ArrayList acceptPatch(String filePath, String resultPath, String patchFilePath,
+                                        String fileHash, PatchOptions options)
+            throws IOException {
+        InputStream patchStream = new FileInputStream(patchFilePath);
+        try {
+            return acceptPatch(filePath, resultPath, patchStream, fileHash, options);
+        } finally {
+            patchStream.close();
+        }
+    }
+
+    /**
+     * Same as {@link #acceptPatch(String, String, InputStream, String, PatchOptions)},
+     * patch is read from the channel.
+     */
+    public static ArrayList acceptPatch(String filePath, String resultPath,
+                                        ReadableByteChannel patchChannel, String fileHash)
+            throws IOException {
+        return acceptPatch(filePath, resultPath, Channels.newInputStream(patchChannel), fileHash, null);
+    }
+
+    public static ArrayList acceptPatch(String filePath, String resultPath,
+                                        InputStream patchStream, String fileHash)
+            throws IOException {
+        return acceptPatch(filePath, resultPath, patchStream, fileHash, null);
+    }
+
+    /**
+     * Applies patch while it is read from the stream. When "info" entry goes first,
+     * blocks are placed to the result as "data" entry bytes arrive,
+     * otherwise "data" is extracted to temporary file first. Stream is not closed.
+     */
+    public static ArrayList acceptPatch(String filePath, String resultPath,
+                                        InputStream patchStream, String fileHash,
+                                        PatchOptions options)
+            throws IOException {
+        if (options == null) {
+            options = new PatchOptions();
+        }
+        final PatchListener listener = PatchListener.of(options.getListener());
+        CancellationToken cancellation = options.getCancellation();
+        if (listener != PatchListener.none) {
+            patchStream = new FilterInputStream(patchStream) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        listener.onRead(PatchListener.Source.PATCH, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    listener.onRead(PatchListener.Source.PATCH, skipped);
+                    return skipped;
+                }
+            };
+        }
+        TarInputStream tis = new TarInputStream(new BufferedInputStream(patchStream));
+        TarEntry entry;
+        PatchManifest manifest = null;
+        File patchDataFile = null;
+        File patchedTempFile = null;
+        PatchJournal journal = null;
+        BlockSignature signature = null;
+        // end of the file patched in place, the start is kept as is
+        TailBackup backup = null;
+        long keptSize = 0;
+        boolean applied = false;
+        boolean finished = false;
+        long started = System.nanoTime();
+        long extractNanos = 0;
+
+        byte[] data = new byte[defaultBlockSize];
+        listener.onBufferAllocated(data.length);
+
+        try {
+            while ((entry = tis.getNextEntry()) != null) {
+                int count;
+
+                if (entry.getName().equals(PatchManifest.infoEntryName)) {
+                    manifest = PatchManifest.readJson(tis);
+                } else if (entry.getName().equals(PatchManifest.manifestEntryName)) {
+                    manifest = PatchManifest.readBinary(tis);
+                } else if (entry.getName().equals("data")) {
+                    if (manifest != null && options.isInPlace()) {
+                        backup = startInPlace(manifest, filePath, resultPath);
+                        keptSize = backup == null ? 0 : backup.offset();
+                    }
+                    if (manifest != null && options.isResumable() && journal == null &&
+                            keptSize == 0) {
+                        journal = PatchJournal.open(resultPath, manifest, fileHash);
+                    }
+                    if (manifest != null && isDataInOrder(manifest)) {
+                        extractNanos += System.nanoTime() - started;
+                        patchedTempFile = keptSize > 0 ? new File(resultPath) :
+                                journal == null ?
+                                        File.createTempFile("data", null) : journal.partialFile();
+                        signature = applyBlocks(filePath, fileHash, manifest,
+                                new StreamDataSource(tis, data), patchedTempFile,
+                                options.getVerifyMode(), options.getExecutor(), listener,
+                                cancellation, journal, keptSize);
+                        applied = true;
+                        started = System.nanoTime();
+                        continue;
+                    }
+                    if (journal != null && journal.isDataExtracted() &&
+                            journal.dataFile().length() == entry.getSize()) {
+                        // extracted before applying was interrupted
+                        patchDataFile = journal.dataFile();
+                        continue;
+                    }
+                    patchDataFile = journal == null ?
+                            File.createTempFile("data", null) : journal.dataFile();
+                    FileOutputStream fos = new FileOutputStream(patchDataFile, false);
+                    BufferedOutputStream os = new BufferedOutputStream(fos);
+                    try {
+                        long extracted = 0;
+                        while ((count = tis.read(data, 0, defaultBlockSize)) != -1) {
+                            os.write(data, 0, count);
+                            listener.onWrite(PatchListener.Source.TEMP, count);
+                            extracted += count;
+                            progress(listener, cancellation, PatchListener.Phase.EXTRACT,
+                                    extracted, entry.getSize());
+                        }
+                        os.flush();
+                        if (journal != null) {
+                            fos.getFD().sync();
+                        }
+                    } finally {
+                        os.close();
+                    }
+                    if (journal != null) {
+                        journal.dataExtracted();
+                    }
+                }
+            }
+
+            listener.onPhase(PatchListener.Phase.EXTRACT,
+                    extractNanos + System.nanoTime() - started);
+            if (manifest == null) {
+                throw new IOException("Patch info not found");
+            }
+            if (!applied) {
+                if (options.isInPlace() && backup == null) {
+                    backup = startInPlace(manifest, filePath, resultPath);
+                    keptSize = backup == null ? 0 : backup.offset();
+                }
+                if (options.isResumable() && journal == null && keptSize == 0) {
+                    // data went before the manifest, so it is extracted to temporary file
+                    journal = PatchJournal.open(resultPath, manifest, fileHash);
+                }
+                if (patchDataFile == null) {
+                    patchDataFile = File.createTempFile("data", null);
+                }
+                patchedTempFile = keptSize > 0 ? new File(resultPath) :
+                        journal == null ?
+                                File.createTempFile("data", null) : journal.partialFile();
+                RandomAccessFile patchData = new RandomAccessFile(patchDataFile, "r");
+                try {
+                    signature = applyBlocks(filePath, fileHash, manifest,
+                            new ChannelDataSource(patchData.getChannel(),
+                                    listener, PatchListener.Source.TEMP),
+                            patchedTempFile, options.getVerifyMode(), options.getExecutor(),
+                            listener, cancellation, journal, keptSize);
+                } finally {
+                    patchData.close();
+                }
+            }
+            ArrayList result;
+            try {
+                result = finishPatch(resultPath, manifest, signature, patchedTempFile,
+                        options.getVerifyMode(), listener, cancellation);
+            } catch (IOException e) {
+                // partial result is broken, applying starts over next time
+                if (journal != null) {
+                    journal.delete();
+                }
+                throw e;
+            }
+            finished = true;
+            return result;
+        } finally {
+            if (journal != null) {
+                if (finished) {
+                    journal.delete();
+                } else {
+                    journal.close();
+                }
+            }
+            if (backup != null) {
+                try {
+                    if (finished) {
+                        backup.delete();
+                    } else {
+                        // file is left as it was before applying
+                        backup.restore();
+                    }
+                } catch (IOException e) {
+                    // backup is kept, file is restored when applying starts again
+                    Log.e(TAG, "Exception on restoring file patched in place", e);
+                }
+            }
+            // partial result and extracted data are kept until applying is finished
+            boolean keep = journal != null && !finished;
+            if (patchedTempFile != null && keptSize == 0 &&
+                    !(keep && patchedTempFile.equals(journal.partialFile()))) {
+                //noinspection ResultOfMethodCallIgnored
+                patchedTempFile.delete();
+            }
+            if (patchDataFile != null &&
+                    !(keep && patchDataFile.equals(journal.dataFile()))) {
+                //noinspection ResultOfMethodCallIgnored
+                patchDataFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Opens read only view of the file the patch gives when it is applied to the file,
+     * data is read from the file and the patch as it is requested.
+     * Patch is read in place, so it must stay unchanged while the view is open.
+     */
+    public static PatchedFileChannel openPatched(String filePath, String patchFilePath,
+                                                 String fileHash, PatchOptions options)
+            throws IOException {
+        if (options == null) {
+            options = new PatchOptions();
+        }
+        return new PatchedFileChannel(filePath, patchFilePath, fileHash,
+                PatchListener.of(options.getListener()));
+    }
+
+    /**
+     * Same as {@link #squashPatches(List, OutputStream, PatchOptions)},
+     * patch is written to the file
+     */
+    public static Map squashPatches(List<String> patchFilePaths, String patchFilePath,
+                                    PatchOptions options)
+            throws IOException {
+        FileOutputStream patchFile = new FileOutputStream(patchFilePath);
+        try {
+            return squashPatches(patchFilePaths, patchFile, options);
+        } catch (CancellationException e) {
+            patchFile.close();
+            //noinspection ResultOfMethodCallIgnored
+            new File(patchFilePath).delete();
+            throw e;
+        } finally {
+            patchFile.close();
+        }
+    }
+
+    /**
+     * Composes a chain of patches, each created for the result of the previous one,
+     * into one patch from the old file of the first patch to the result of the last one.
+     * Blocks are resolved through the chain without building intermediate files,
+     * data of new blocks replaced by later patches is dropped.
+     * Squashed patch is checked by the hash of the whole result when it is applied.
+     * Stream is flushed, but not closed.
+     *
+     * @return info of the squashed patch, same as {@link #createPatch} returns
+     */
+    public static Map squashPatches(List<String> patchFilePaths, OutputStream patchStream,
+                                    PatchOptions options)
+            throws IOException {
+        if (patchFilePaths.isEmpty()) {
+            throw new IllegalArgumentException("No patches to squash");
+        }
+        if (options == null) {
+            options = new PatchOptions();
+        }
+        PatchListener listener = PatchListener.of(options.getListener());
+        CancellationToken cancellation = options.getCancellation();
+
+        PatchChain chain = new PatchChain();
+        ArrayList<File> dataFiles = new ArrayList<>();
+        ArrayList<RandomAccessFile> patchData = new ArrayList<>();
+        File squashedDataFile = null;
+        try {
+            long started = System.nanoTime();
+            for (String patchFilePath : patchFilePaths) {
+                File dataFile = File.createTempFile("data", null);
+                dataFiles.add(dataFile);
+                chain.add(readPatch(patchFilePath, dataFile, listener, cancellation));
+            }
+            listener.onPhase(PatchListener.Phase.EXTRACT, System.nanoTime() - started);
+
+            started = System.nanoTime();
+            DataSource[] sources = new DataSource[chain.size()];
+            for (int i = 0; i < sources.length; i++) {
+                RandomAccessFile data = new RandomAccessFile(dataFiles.get(i), "r");
+                patchData.add(data);
+                sources[i] = new ChannelDataSource(
+                        data.getChannel(), listener, PatchListener.Source.TEMP);
+            }
+            squashedDataFile = File.createTempFile("data", null);
+            PatchManifest manifest = squashBlocks(chain, sources, options.getCodec(),
+                    squashedDataFile, listener, cancellation);
+            if (options.isCoalesceBlocks()) {
+                coalesceBlocks(manifest, 0);
+            }
+            listener.onPhase(PatchListener.Phase.DIFF, System.nanoTime() - started);
+
+            started = System.nanoTime();
+            byte[] data = new byte[defaultBlockSize];
+            listener.onBufferAllocated(data.length);
+            TarOutputStream out = startPatch(
+                    patchStream, manifest, options.getManifestFormat(), listener);
+            writeDataFile(out, squashedDataFile, dataSize(manifest), data,
+                    listener, cancellation);
+            out.flush();
+            out.close();
+            listener.onPhase(PatchListener.Phase.WRITE, System.nanoTime() - started);
+            return manifest.toMap();
+        } finally {
+            for (RandomAccessFile data : patchData) {
+                data.close();
+            }
+            for (File dataFile : dataFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                dataFile.delete();
+            }
+            if (squashedDataFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                squashedDataFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads manifest of the patch and extracts its data to the file
+     */
+    private static PatchManifest readPatch(String patchFilePath, File dataFile,
+                                           PatchListener listener,
+                                           CancellationToken cancellation)
+            throws IOException {
+        InputStream patchStream = new FileInputStream(patchFilePath);
+        try {
+            TarInputStream tis = new TarInputStream(new BufferedInputStream(patchStream));
+            PatchManifest manifest = null;
+            TarEntry entry;
+            while ((entry = tis.getNextEntry()) != null) {
+                if (entry.getName().equals(PatchManifest.infoEntryName)) {
+                    manifest = PatchManifest.readJson(tis);
+                } else if (entry.getName().equals(PatchManifest.manifestEntryName)) {
+                    manifest = PatchManifest.readBinary(tis);
+                } else if (entry.getName().equals("data")) {
+                    byte[] data = new byte[defaultBlockSize];
+                    listener.onBufferAllocated(data.length);
+                    BufferedOutputStream os = new BufferedOutputStream(
+                            new FileOutputStream(dataFile, false));
+                    try {
+                        long extracted = 0;
+                        int count;
+                        while ((count = tis.read(data, 0, defaultBlockSize)) != -1) {
+                            os.write(data, 0, count);
+                            listener.onRead(PatchListener.Source.PATCH, count);
+                            listener.onWrite(PatchListener.Source.TEMP, count);
+                            extracted += count;
+                            progress(listener, cancellation, PatchListener.Phase.EXTRACT,
+                                    extracted, entry.getSize());
+                        }
+                        os.flush();
+                    } finally {
+                        os.close();
+                    }
+                }
+            }
+            if (manifest == null) {
+                throw new IOException("Patch info not found");
+            }
+            return manifest;
+        } finally {
+            patchStream.close();
+        }
+    }
+
+    /**
+     * Writes data of new blocks of the squashed patch to the file,
+     * data used by several blocks is written once
+     *
+     * @return manifest of the squashed patch
+     */
+    private static PatchManifest squashBlocks(PatchChain chain, DataSource[] sources,
+                                              BlockCodec codec, File dataFile,
+                                              PatchListener listener,
+                                              CancellationToken cancellation)
+            throws IOException {
+        PatchManifest last = chain.manifest(chain.size() - 1);
+        ArrayList<PatchChain.Extent> extents = chain.extents();
+        ArrayList<PatchBlock> blocks = new ArrayList<>(extents.size());
+        CompressedDataSource[] compressedSources = new CompressedDataSource[sources.length];
+        PatchBlock[] loadedBlocks = new PatchBlock[sources.length];
+        BlockCompressor compressor = codec == null ? null : new BlockCompressor(codec);
+        // offsets of squashed new blocks by data of the source block they are taken from
+        HashMap<String, Long> written = new HashMap<>();
+        byte[] data = new byte[0];
+        long dataOffset = 0;
+
+        BufferedOutputStream dataStream = new BufferedOutputStream(
+                new FileOutputStream(dataFile, false));
+        try {
+            for (PatchChain.Extent extent : extents) {
+                if (extent.patch == PatchChain.ZERO) {
+                    blocks.add(squashedBlock(extent, PatchBlock.ZERO, 0, null, -1));
+                    continue;
+                }
+                if (extent.block == null) {
+                    blocks.add(squashedBlock(
+                            extent, PatchBlock.FROM_OLD, extent.source, null, -1));
+                    continue;
+                }
+                String key = extent.patch + ":" + extent.block.sourceOffset + ":" +
+                        extent.source + ":" + extent.length;
+                Long writtenOffset = written.get(key);
+                if (writtenOffset != null) {
+                    blocks.add(squashedBlock(
+                            extent, PatchBlock.FROM_PATCH, writtenOffset, null, -1));
+                    continue;
+                }
+                written.put(key, extent.offset);
+
+                DataSource source = sources[extent.patch];
+                long position = extent.block.sourceOffset + extent.source;
+                if (extent.block.codec != null) {
+                    if (compressedSources[extent.patch] == null) {
+                        compressedSources[extent.patch] =
+                                new CompressedDataSource(source, listener);
+                    }
+                    if (loadedBlocks[extent.patch] != extent.block) {
+                        compressedSources[extent.patch].load(
+                                extent.block, chain.manifest(extent.patch).blocksize);
+                        loadedBlocks[extent.patch] = extent.block;
+                    }
+                    source = compressedSources[extent.patch];
+                    position = extent.source;
+                }
+                if (data.length < extent.length) {
+                    data = new byte[extent.length];
+                    listener.onBufferAllocated(data.length);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, extent.length);
+                while (buffer.hasRemaining()) {
+                    if (source.read(position + buffer.position(), buffer) <= 0) {
+                        throw new IOException("Patch data is too short");
+                    }
+                }
+
+                int storedSize = compressor == null ?
+                        -1 : compressor.compress(data, 0, extent.length);
+                if (storedSize < 0) {
+                    storedSize = extent.length;
+                    dataStream.write(data, 0, extent.length);
+                    blocks.add(squashedBlock(extent, PatchBlock.NEW, dataOffset, null, -1));
+                } else {
+                    dataStream.write(compressor.buffer(), 0, storedSize);
+                    blocks.add(squashedBlock(extent, PatchBlock.NEW, dataOffset,
+                            compressor.codecName(), storedSize));
+                }
+                dataOffset += storedSize;
+                listener.onWrite(PatchListener.Source.TEMP, storedSize);
+                progress(listener, cancellation, PatchListener.Phase.DIFF,
+                        extent.offset + extent.length, last.size);
+            }
+        } finally {
+            dataStream.close();
+        }
+
+        PatchManifest manifest = new PatchManifest(blocks);
+        manifest.newHash = last.newHash;
+        manifest.oldHash = chain.manifest(0).oldHash;
+        manifest.blocksize = last.blocksize;
+        manifest.size = last.size;
+        manifest.timeModify = last.timeModify;
+        manifest.hash = last.hash;
+        manifest.chunking = last.chunking;
+        // blocks are split where patches overlap, so result is checked by the whole hash
+        manifest.layout = layoutRolling;
+        reportBlocks(manifest, listener);
+        return manifest;
+    }
+
+    /**
+     * @return block of the squashed patch covering the extent, with the hash of the extent
+     */
+    private static PatchBlock squashedBlock(PatchChain.Extent extent, int kind,
+                                            long sourceOffset, String codec, int storedSize) {
+        PatchBlock hashed = extent.hashed;
+        return hashed == null ?
+                new PatchBlock(extent.offset, kind, sourceOffset, extent.length, null,
+                        codec, storedSize) :
+                new PatchBlock(extent.offset, kind, sourceOffset, extent.length,
+                        hashed.hash, hashed.hashOffset, hashed.hashLength, codec, storedSize);
+    }
+
+    /**
+     * Restores the end of the file left by interrupted applying in place,
+     * then saves the end the patch rewrites when the patch keeps the start of the file
+     * and the file is not longer than the start and one more block,
+     * so no more than a block is saved.
+     *
+     * @return backup of the end of the file, or null if the patch is applied to the copy
+     */
+    private static TailBackup startInPlace(PatchManifest manifest, String filePath,
+                                           String resultPath)
+            throws IOException {
+        File file = new File(filePath);
+        if (!file.getCanonicalFile().equals(new File(resultPath).getCanonicalFile())) {
+            return null;
+        }
+        TailBackup.restore(file, manifest.oldHash);
+
+        long kept = keptSize(manifest);
+        long length = file.length();
+        if (kept == 0 || length < kept || length > kept + manifest.blocksize) return null;
+        return TailBackup.save(file, kept, manifest.oldHash);
+    }
+
+    /**
+     * @return size of the start of the file the patch keeps in place: leading blocks copied
+     * from the same offsets of the old file, when no other block is copied from past them
+     */
+    private static long keptSize(PatchManifest manifest) {
+        long kept = 0;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.kind != PatchBlock.FROM_OLD ||
+                    block.offset != kept || block.sourceOffset != kept) break;
+            kept = Math.min(manifest.size, kept + block.dataSize(manifest.blocksize));
+        }
+        for (PatchBlock block : manifest.blocks) {
+            if (block.kind == PatchBlock.FROM_OLD && block.offset >= kept &&
+                    block.sourceOffset + block.dataSize(manifest.blocksize) > kept) {
+                return 0;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Data of new blocks can be read sequentially while blocks are written in order of offsets
+     */
+    private static boolean isDataInOrder(PatchManifest manifest) {
+        long dataOffset = 0;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.kind != PatchBlock.NEW) continue;
+            if (block.sourceOffset < dataOffset) return false;
+            dataOffset = block.sourceOffset;
+        }
+        return true;
+    }
+
+    /**
+     * Writes blocks of the patch to the result.
+     *
+     * @return signature of the result built while blocks were written,
+     * or null if it has to be built by reading the result again
+     */
+    private static BlockSignature applyBlocks(String filePath, String fileHash,
+                                              PatchManifest manifest,
+                                              DataSource patchData,
+                                              File patchedTempFile,
+                                              VerifyMode verifyMode,
+                                              ExecutorService executor,
+                                              PatchListener listener,
+                                              CancellationToken cancellation,
+                                              PatchJournal journal, long keptSize)
+            throws IOException {
+        long started = System.nanoTime();
+        if (manifest.oldHash != null && !fileHash.equals(manifest.oldHash)) {
+            throw new IOException("Trying to apply patch for wrong file");
+        }
+
+        int blocksize = manifest.blocksize;
+        File file = new File(filePath);
+        ArrayList<PatchBlock> delayedBlocks = new ArrayList<>();
+        int resumed = journal == null ? 0 : journal.appliedBlocks();
+
+        // hashed and compressed blocks are held in memory while they are applied in pipeline
+        boolean pipelined = executor != null &&
+                wholeBlockSize(manifest) <= pipelineBufferSize / 2;
+        BlockApplier applier = null;
+        if (verifyMode != VerifyMode.FINAL && !pipelined) {
+            try {
+                applier = new BlockApplier(manifest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            listener.onBufferAllocated(applier.bufferSize());
+        }
+
+        RandomAccessFile patchedFile = new RandomAccessFile(patchedTempFile, "rw");
+        RandomAccessFile originalFile = null;
+        BlockPipeline pipeline = null;
+        try {
+            if ((journal != null || keptSize > 0) && patchedFile.length() > manifest.size) {
+                patchedFile.setLength(manifest.size);
+            }
+            try {
+                originalFile = new RandomAccessFile(file, "r");
+            } catch (FileNotFoundException ignored) {
+            }
+
+            FileChannel patchedChannel = patchedFile.getChannel();
+            DataSource patchedData = new ChannelDataSource(
+                    patchedChannel, listener, PatchListener.Source.RESULT);
+            DataSource originalData = originalFile == null ? null : new ChannelDataSource(
+                    originalFile.getChannel(), listener, PatchListener.Source.OLD_FILE);
+            CompressedDataSource compressedData = null;
+            DataSource zeroData = new ZeroDataSource();
+            long existingSize = keptSize > 0 ? patchedFile.length() : 0;
+            if (pipelined) {
+                try {
+                    pipeline = new BlockPipeline(manifest, patchedChannel, executor,
+                            verifyMode != VerifyMode.FINAL, listener, cancellation, journal);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+            }
+            // blocks written before applying was interrupted are skipped
+            int applied = 0;
+
+            // blocks are sorted by offset, so output file is written sequentially
+            for (PatchBlock block : manifest.blocks) {
+                // block is already written to the result at its own offset
+                // unless it is later in the file
+                if (block.kind == PatchBlock.FROM_PATCH && block.sourceOffset >= block.offset) {
+                    delayedBlocks.add(block);
+                    continue;
+                }
+                if (applied++ < resumed) continue;
+                if (block.offset < keptSize) {
+                    // start of the file patched in place is already there
+                    if (pipeline != null) {
+                        pipeline.keep(block);
+                    } else if (applier != null) {
+                        applier.keep(block);
+                    }
+                    continue;
+                }
+
+                DataSource source;
+                long position = block.sourceOffset;
+                int dataSize = block.dataSize(blocksize);
+                switch (block.kind) {
+                    case PatchBlock.NEW:
+                        source = patchData;
+                        // pipeline decompresses blocks itself
+                        if (block.codec != null && pipeline == null) {
+                            if (compressedData == null) {
+                                compressedData = new CompressedDataSource(patchData, listener);
+                            }
+                            compressedData.load(block, blocksize);
+                            source = compressedData;
+                            position = 0;
+                        }
+                        break;
+                    case PatchBlock.FROM_PATCH:
+                        source = patchedData;
+                        dataSize = patchBlockAt(manifest, block.sourceOffset).dataSize(blocksize);
+                        break;
+                    case PatchBlock.ZERO:
+                        // old data of the file patched in place is overwritten
+                        source = block.offset < existingSize ? zeroData : null;
+                        break;
+                    default:
+                        if (originalData == null) {
+                            patchedTempFile.deleteOnExit();
+                            throw new IOException("Original file not found");
+                        }
+                        source = originalData;
+                }
+
+                if (pipeline != null) {
+                    if (source == patchedData) {
+                        // source block must reach the result first
+                        pipeline.drain();
+                    }
+                    pipeline.submit(block, source, position, dataSize, applied,
+                            block.offset + dataSize);
+                    continue;
+                }
+                if (source == null) {
+                    // zero block is left as a hole in the result
+                    if (applier != null) {
+                        applier.zero(block, dataSize);
+                    }
+                } else if (applier == null) {
+                    patchedChannel.position(block.offset);
+                    source.copy(position, dataSize, patchedChannel);
+                } else {
+                    applier.apply(block, source, position, dataSize, patchedChannel);
+                }
+                reportBlock(block, manifest, listener);
+                progress(listener, cancellation, PatchListener.Phase.APPLY,
+                        block.offset + dataSize, manifest.size);
+                if (journal != null) {
+                    journal.blockWritten(applied, dataSize, patchedChannel);
+                }
+            }
+
+            for (PatchBlock block : delayedBlocks) {
+                if (applied++ < resumed) continue;
+                int dataSize = patchBlockAt(manifest, block.sourceOffset).dataSize(blocksize);
+                if (pipeline != null) {
+                    pipeline.drain();
+                    pipeline.submit(block, patchedData, block.sourceOffset, dataSize, applied,
+                            manifest.size);
+                    continue;
+                }
+                if (applier == null) {
+                    patchedChannel.position(block.offset);
+                    patchedData.copy(block.sourceOffset, dataSize, patchedChannel);
+                } else {
+                    applier.apply(block, patchedData, block.sourceOffset, dataSize, patchedChannel);
+                }
+                reportBlock(block, manifest, listener);
+                progress(listener, cancellation, PatchListener.Phase.APPLY,
+                        manifest.size, manifest.size);
+                if (journal != null) {
+                    journal.blockWritten(applied, dataSize, patchedChannel);
+                }
+            }
+            if (pipeline != null) {
+                pipeline.drain();
+            }
+            if (patchedFile.length() < manifest.size) {
+                // trailing zero blocks are not written
+                patchedFile.setLength(manifest.size);
+            }
+        } finally {
+            if (pipeline != null) {
+                // blocks in flight are not written to closed file
+                pipeline.await();
+            }
+            if (originalFile != null) {
+                originalFile.close();
+            }
+            patchedFile.close();
+        }
+        listener.onPhase(PatchListener.Phase.APPLY, System.nanoTime() - started);
+        // result written before applying was interrupted is checked by reading it again
+        if (resumed > 0) return null;
+        if (pipeline != null) return pipeline.signature();
+        return applier == null ? null : applier.signature();
+    }
+
+    private static void reportBlock(PatchBlock block, PatchManifest manifest,
+                                    PatchListener listener) {
+        if (listener == PatchListener.none) return;
+        int dataSize = (int) Math.min(
+                block.dataSize(manifest.blocksize), manifest.size - block.offset);
+        listener.onBlock(PatchListener.blockKind(block.kind), dataSize);
+        if (block.kind != PatchBlock.ZERO) {
+            listener.onWrite(PatchListener.Source.RESULT, dataSize);
+        }
+    }
+
+    private static PatchBlock patchBlockAt(PatchManifest manifest, long offset) throws IOException {
+        PatchBlock patchBlock = manifest.blockAt(offset);
+        if (patchBlock == null) {
+            throw new IOException("Patch block not found at offset " + offset);
+        }
+        return patchBlock;
+    }
+
+    /**
+     * @return true if blocks with hashes cover whole file one after another
+     */
+    private static boolean isChunksSignature(PatchManifest manifest) {
+        long end = 0;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.hash == null || block.offset != end) return false;
+            end += block.dataSize(manifest.blocksize);
+        }
+        return end == manifest.size;
+    }
+
+    private static TreeMap<Long, String> expectedBlocksHashes(PatchManifest manifest) {
+        TreeMap<Long, String> blocksHashes = new TreeMap<>();
+        for (PatchBlock block : manifest.blocks) {
+            if (block.hash != null) {
+                blocksHashes.put(block.offset, block.hashHex());
+            }
+        }
+        return blocksHashes;
+    }
+
+    private static ArrayList finishPatch(String resultFilePath, PatchManifest manifest,
+                                         BlockSignature signature, File patchedTempFile,
+                                         VerifyMode verifyMode, PatchListener listener,
+                                         CancellationToken cancellation)
+            throws IOException {
+        long started = System.nanoTime();
+        if (signature == null || verifyMode == VerifyMode.PARANOID) {
+            BlockSignature patchedFileSignature = Objects.requireNonNull(
+                    manifest.chunking == null ?
+                            readBlockSignature(patchedTempFile.getPath(), manifest.blocksize,
+                                    manifest.hash, listener, PatchListener.Source.RESULT,
+                                    cancellation) :
+                            chunkSignature(patchedTempFile.getPath(), manifest.chunking,
+                                    manifest.hash, listener, PatchListener.Source.RESULT,
+                                    cancellation));
+            if (signature != null && !signature.equals(patchedFileSignature)) {
+                throw new IOException(String.format(
+                        "Invalid patch result, written signature: %s, actual: %s",
+                        signature.toMap(), patchedFileSignature.toMap()));
+            }
+            signature = patchedFileSignature;
+        }
+        TreeMap<Long, String> blocksHashes = signature.toMap();
+
+        if (layoutRolling.equals(manifest.layout)) {
+            // blocks of rolling patch are not aligned, check whole file signature instead
+            String patchedFileHash;
+            try {
+                patchedFileHash = hashFromBlocksHashes(signature, manifest.hash);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            if (!patchedFileHash.equals(manifest.newHash)) {
+                throw new IOException(String.format(
+                        "Invalid patch result, expected hash: %s, actual: %s",
+                        manifest.newHash, patchedFileHash));
+            }
+        } else {
+            TreeMap<Long, String> expectedBlocksHashes = expectedBlocksHashes(manifest);
+            if (!Objects.equals(blocksHashes, expectedBlocksHashes)) {
+                throw new IOException(String.format(
+                        "Invalid patch result, expected signature: %s, actual: %s",
+                        expectedBlocksHashes, blocksHashes));
+            }
+        }
+        // result is not touched once it is cancelled
+        if (cancellation != null) {
+            cancellation.throwIfCancelled();
+        }
+        try {
+
+            File fileResult = new File(resultFilePath);
+            // file patched in place is the result already
+            if (!fileResult.equals(patchedTempFile)) {
+                if (fileResult.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    fileResult.delete();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                patchedTempFile.renameTo(fileResult);
+            }
+        } catch (Exception e) {
+            throw new IOException(String.format(
+                    "Unable to rename file '%s' to '%s'",
+                    patchedTempFile.getName(),
+                    resultFilePath));
+        }
+        ArrayList<Object> res = new ArrayList<>();
+        res.add(manifest.newHash);
+        res.add(blocksHashes);
+        listener.onPhase(PatchListener.Phase.VERIFY, System.nanoTime() - started);
+        return res;
+    }
+
+    /**
+     * Copies up to count bytes from source position to target current position
+     * without passing data through java heap. Stops early on the end of source,
+     * same as block reads did.
+     */
+    private static long transfer(FileChannel source, long position, long count,
+                                 FileChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long last = source.transferTo(
+                    position + transferred, count - transferred, target);
+            if (last <= 0) break;
+            transferred += last;
+        }
+        return transferred;
+    }
+
+    private static IOException invalidBlock(PatchBlock block, String actualHash) {
+        return new IOException(String.format(
+                "Invalid patch block at offset %s, expected hash: %s, actual: %s",
+                block.offset, block.hashHex(), actualHash));
+    }
+
+    /**
+     * Size of buffer to hold any block hashed or compressed as a whole,
+     * other blocks are applied in pieces of that size
+     */
+    private static int wholeBlockSize(PatchManifest manifest) {
+        int size = manifest.blocksize;
+        for (PatchBlock block : manifest.blocks) {
+            if (block.hash != null || block.codec != null) {
+                size = Math.max(size, block.dataSize(manifest.blocksize));
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Adds hash of the block kept in place in the result to the signature
+     *
+     * @return the builder, or null if the block can't be added by its hash
+     */
+    private static SignatureBuilder addKeptBlock(SignatureBuilder builder, PatchBlock block,
+                                                 PatchManifest manifest) {
+        int dataSize = (int) Math.min(
+                block.dataSize(manifest.blocksize), manifest.size - block.offset);
+        if (builder == null || block.hash == null || builder.position() != block.offset ||
+                block.offset % manifest.blocksize != 0 || dataSize > manifest.blocksize ||
+                (dataSize != manifest.blocksize && block.offset + dataSize != manifest.size)) {
+            // signature will be built from the result
+            return null;
+        }
+        builder.add(block.hash, block.hashOffset, dataSize);
+        return builder;
+    }
+
+    /**
+     * Writes blocks to the result through one reused buffer, hashing them on the way.
+     * Every block is checked as soon as it is written and signature of the result
+     * is built at the same time, so the result doesn't have to be read again.
+     */
+    private static final class BlockApplier {
+        private final PatchManifest manifest;
+        private final ByteBuffer buffer;
+        private final MessageDigest blockDigest;
+        private final byte[] digestBuffer;
+        private final ZeroBlocks zeroBlocks;
+        private SignatureBuilder builder;
+
+        BlockApplier(PatchManifest manifest) throws NoSuchAlgorithmException {
+            this.manifest = manifest;
+            buffer = ByteBuffer.allocate(Math.min(manifest.blocksize, defaultBlockSize));
+            blockDigest = manifest.hash.newDigest();
+            digestBuffer = new byte[blockDigest.getDigestLength()];
+            zeroBlocks = new ZeroBlocks(manifest.hash);
+            if (manifest.chunking == null) {
+                builder = new SignatureBuilder(
+                        manifest.hash.newDigest(), manifest.blocksize,
+                        new BlockSignature(digestBuffer.length,
+                                (int) (manifest.size / manifest.blocksize) + 1));
+            }
+        }
+
+        void apply(PatchBlock block, DataSource source, long position, int dataSize,
+                   FileChannel target)
+                throws IOException {
+            if (builder != null && builder.position() != block.offset) {
+                // blocks are not contiguous, signature will be built from the result
+                builder = null;
+            }
+            boolean aligned = builder != null && block.offset % manifest.blocksize == 0 &&
+                    dataSize <= manifest.blocksize &&
+                    (dataSize == manifest.blocksize || block.offset + dataSize == manifest.size);
+            boolean checkBlock = block.hash != null && !aligned;
+
+            long written = 0;
+            while (written < dataSize) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), dataSize - written));
+                if (source.read(position + written, buffer) <= 0) break;
+                buffer.flip();
+                int count = buffer.remaining();
+                if (checkBlock) {
+                    blockDigest.update(buffer.array(), 0, count);
+                }
+                if (builder != null) {
+                    builder.update(buffer.array(), 0, count);
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, block.offset + written + buffer.position());
+                }
+                written += count;
+            }
+
+            if (aligned) {
+                if (block.offset + written == manifest.size) {
+                    builder.finish();
+                }
+                BlockSignature signature = builder.signature();
+                int last = signature.size() - 1;
+                if (last < 0 || signature.offsetAt(last) != block.offset ||
+                        (block.hash != null &&
+                                !signature.digestEquals(last, block.hash, block.hashOffset))) {
+                    throw invalidBlock(block, last < 0 ? null : signature.hashAt(last));
+                }
+            } else if (checkBlock) {
+                try {
+                    blockDigest.digest(digestBuffer, 0, digestBuffer.length);
+                } catch (DigestException e) {
+                    throw new IOException(e);
+                }
+                if (!block.hashEquals(digestBuffer)) {
+                    throw invalidBlock(block, Hex.encode(digestBuffer));
+                }
+            }
+        }
+
+        /**
+         * Adds block kept in place in the result to the signature by its hash
+         */
+        void keep(PatchBlock block) {
+            builder = addKeptBlock(builder, block, manifest);
+        }
+
+        /**
+         * Checks zero block by its hash and adds its zeros to the signature,
+         * nothing is written to the result
+         */
+        void zero(PatchBlock block, int dataSize) throws IOException {
+            if (builder != null && builder.position() != block.offset) {
+                builder = null;
+            }
+            try {
+                if (block.hash != null && !zeroBlocks.isZero(block, dataSize)) {
+                    throw invalidBlock(block, Hex.encode(zeroBlocks.digest(dataSize)));
+                }
+                if (builder != null) {
+                    zeroBlocks.update(builder, manifest.blocksize, manifest.size, dataSize);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        int bufferSize() {
+            return buffer.capacity();
+        }
+
+        /**
+         * @return signature of written result or null if it couldn't be built
+         */
+        BlockSignature signature() {
+            if (manifest.chunking != null) {
+                // every chunk is checked by its hash when it is written
+                return isChunksSignature(manifest) ?
+                        BlockSignature.fromMap(expectedBlocksHashes(manifest)) : null;
+            }
+            if (builder == null || builder.position() != manifest.size) return null;
+            builder.finish();
+            return builder.signature();
+        }
+    }
+
+    /**
+     * Applies blocks in overlapping stages: blocks data is read in order of offsets
+     * on the calling thread, decompressed and hashed on the executor, and written
+     * to the result in order of offsets by the executor thread which completes the next block.
+     * Fixed set of block buffers is reused, reading waits while all of them are in flight.
+     */
+    private static final class BlockPipeline {
+        private final PatchManifest manifest;
+        private final FileChannel target;
+        private final ExecutorService executor;
+        private final boolean verify;
+        private final PatchListener listener;
+        private final CancellationToken cancellation;
+        private final PatchJournal journal;
+        private final ZeroBlocks zeroBlocks;
+        // blocks in flight by sequence number modulo count of buffers
+        private final Slot[] inFlight;
+        private final ArrayDeque<Slot> free = new ArrayDeque<>();
+        // written blocks and progress to report on the thread applying the patch
+        private final ArrayDeque<PatchBlock> written = new ArrayDeque<>();
+        private long writtenProgress = -1;
+        private final int bufferSize;
+        private SignatureBuilder builder;
+        private long submitted = 0;
+        private long completed = 0;
+        private boolean writing = false;
+        private Throwable error;
+
+        BlockPipeline(PatchManifest manifest, FileChannel target, ExecutorService executor,
+                      boolean verify, PatchListener listener, CancellationToken cancellation,
+                      PatchJournal journal)
+                throws NoSuchAlgorithmException {
+            this.manifest = manifest;
+            this.target = target;
+            this.executor = executor;
+            this.verify = verify;
+            this.listener = listener;
+            this.cancellation = cancellation;
+            this.journal = journal;
+            zeroBlocks = new ZeroBlocks(manifest.hash);
+            bufferSize = Math.max(1, wholeBlockSize(manifest));
+            inFlight = new Slot[Math.max(2, Math.min(
+                    pipelineMaxBuffers, pipelineBufferSize / bufferSize))];
+            for (int i = 0; i < inFlight.length; i++) {
+                free.add(new Slot(bufferSize, manifest.hash.newDigest()));
+                listener.onBufferAllocated(bufferSize);
+            }
+            if (verify && manifest.chunking == null) {
+                builder = new SignatureBuilder(
+                        manifest.hash.newDigest(), manifest.blocksize,
+                        new BlockSignature(free.peek().digestBuffer.length,
+                                (int) (manifest.size / manifest.blocksize) + 1));
+            }
+        }
+
+        /**
+         * Reads block data and passes the block to the executor, waits for a free buffer.
+         * Extents larger than the buffer are passed in pieces.
+         *
+         * @param source   null for zero block, which is checked but not written
+         * @param applied  count of blocks applied with this one
+         * @param progress bytes of the result done when the block is written
+         */
+        void submit(PatchBlock block, DataSource source, long position, int dataSize,
+                    int applied, long progress) throws IOException {
+            if (source == null) {
+                submit(block, null, 0, block.offset, dataSize, true, applied, progress);
+                return;
+            }
+            for (int piece = 0; ; piece += bufferSize) {
+                int length = Math.min(bufferSize, dataSize - piece);
+                if (piece + length >= dataSize) {
+                    submit(block, source, position + piece, block.offset + piece, length,
+                            true, applied, progress);
+                    return;
+                }
+                // block is not applied until its last piece is written
+                submit(block, source, position + piece, block.offset + piece, length,
+                        false, applied - 1, progress - (dataSize - piece - length));
+            }
+        }
+
+        private void submit(PatchBlock block, DataSource source, long position, long offset,
+                            int dataSize, boolean last, int applied, long progress)
+                throws IOException {
+            Slot slot = null;
+            while (slot == null) {
+                report();
+                synchronized (this) {
+                    throwError();
+                    if (free.isEmpty()) {
+                        waitForBlocks();
+                    } else {
+                        slot = free.poll();
+                    }
+                }
+            }
+            slot.block = block;
+            slot.offset = offset;
+            slot.last = last;
+            slot.dataSize = dataSize;
+            slot.applied = applied;
+            slot.progress = progress;
+            slot.aligned = false;
+            slot.zero = source == null;
+            try {
+                if (source == null) {
+                    slot.length = dataSize;
+                } else if (block.codec != null) {
+                    if (slot.storedData.length < block.storedSize) {
+                        slot.storedData = new byte[block.storedSize];
+                        slot.storedBuffer = ByteBuffer.wrap(slot.storedData);
+                        listener.onBufferAllocated(slot.storedData.length);
+                    }
+                    if (read(source, position, slot.storedBuffer, block.storedSize) <
+                            block.storedSize) {
+                        throw new IOException("Patch data is too short");
+                    }
+                    slot.length = dataSize;
+                } else {
+                    slot.length = read(source, position, slot.buffer, dataSize);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    slot.block = null;
+                    free.add(slot);
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                inFlight[(int) (submitted++ % inFlight.length)] = slot;
+            }
+            final Slot submittedSlot = slot;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(submittedSlot);
+                    }
+                });
+            } catch (RuntimeException e) {
+                fail(e);
+                complete(slot);
+                throw e;
+            }
+        }
+
+        /**
+         * Adds block kept in place in the result to the signature by its hash,
+         * blocks are kept before any block is submitted
+         */
+        synchronized void keep(PatchBlock block) {
+            builder = addKeptBlock(builder, block, manifest);
+        }
+
+        private static int read(DataSource source, long position, ByteBuffer buffer, int length)
+                throws IOException {
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (source.read(position + buffer.position(), buffer) <= 0) break;
+            }
+            return buffer.position();
+        }
+
+        private void process(Slot slot) {
+            try {
+                PatchBlock block = slot.block;
+                if (slot.zero) {
+                    if (verify && block.hash != null &&
+                            !zeroBlocks.isZero(block, slot.length)) {
+                        throw invalidBlock(block, Hex.encode(zeroBlocks.digest(slot.length)));
+                    }
+                } else if (block.codec != null) {
+                    BlockCodec codec = BlockCodec.forName(block.codec);
+                    if (codec == null) {
+                        throw new IOException("Unknown patch block codec: " + block.codec);
+                    }
+                    codec.decompress(slot.storedData, 0, block.storedSize,
+                            slot.data, 0, slot.dataSize);
+                }
+                if (verify && !slot.zero) {
+                    hash(slot);
+                }
+            } catch (Throwable e) {
+                fail(e);
+            }
+            complete(slot);
+        }
+
+        private void hash(Slot slot) throws IOException {
+            PatchBlock block = slot.block;
+            int blocksize = manifest.blocksize;
+            // aligned block hash is the result signature hash as well
+            slot.aligned = manifest.chunking == null && slot.offset % blocksize == 0 &&
+                    slot.length <= blocksize &&
+                    (slot.length == blocksize || slot.offset + slot.length == manifest.size);
+            if (block.hash == null && !slot.aligned) return;
+            slot.digest.update(slot.data, 0, slot.length);
+            try {
+                slot.digest.digest(slot.digestBuffer, 0, slot.digestBuffer.length);
+            } catch (DigestException e) {
+                throw new IOException(e);
+            }
+            if (block.hash != null && !block.hashEquals(slot.digestBuffer)) {
+                throw invalidBlock(block, Hex.encode(slot.digestBuffer));
+            }
+        }
+
+        /**
+         * Writes completed blocks in order, unless another thread does it already
+         */
+        private void complete(Slot slot) {
+            synchronized (this) {
+                slot.done = true;
+                if (writing) return;
+                writing = true;
+            }
+            while (true) {
+                Slot next;
+                boolean failed;
+                synchronized (this) {
+                    next = inFlight[(int) (completed % inFlight.length)];
+                    if (completed == submitted || next == null || !next.done) {
+                        writing = false;
+                        notifyAll();
+                        return;
+                    }
+                    failed = error != null;
+                }
+                if (!failed) {
+                    try {
+                        write(next);
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+                synchronized (this) {
+                    inFlight[(int) (completed++ % inFlight.length)] = null;
+                    next.done = false;
+                    next.block = null;
+                    free.add(next);
+                    notifyAll();
+                }
+            }
+        }
+
+        private void write(Slot slot) throws IOException, NoSuchAlgorithmException {
+            // zero block is left as a hole in the result
+            if (!slot.zero) {
+                ByteBuffer buffer = slot.buffer;
+                buffer.clear();
+                buffer.limit(slot.length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, slot.offset + buffer.position());
+                }
+            }
+            if (builder != null && builder.position() != slot.offset) {
+                // blocks are not contiguous, signature will be built from the result
+                builder = null;
+            }
+            if (builder != null) {
+                if (slot.zero) {
+                    zeroBlocks.update(builder, manifest.blocksize, manifest.size, slot.length);
+                } else if (slot.aligned) {
+                    builder.add(slot.digestBuffer, 0, slot.length);
+                } else {
+                    builder.update(slot.data, 0, slot.length);
+                }
+            }
+            synchronized (this) {
+                if (slot.last) {
+                    written.add(slot.block);
+                }
+                writtenProgress = slot.progress;
+            }
+            if (journal != null) {
+                journal.blockWritten(slot.applied, slot.length, target);
+            }
+        }
+
+        /**
+         * Reports blocks written since the last call, listener and cancellation
+         * are called on the thread applying the patch only
+         */
+        private void report() {
+            while (true) {
+                PatchBlock block;
+                synchronized (this) {
+                    block = written.poll();
+                }
+                if (block == null) break;
+                reportBlock(block, manifest, listener);
+            }
+            long progress;
+            synchronized (this) {
+                progress = writtenProgress;
+                writtenProgress = -1;
+            }
+            if (progress >= 0) {
+                progress(listener, cancellation, PatchListener.Phase.APPLY,
+                        progress, manifest.size);
+            }
+        }
+
+        private synchronized void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        private void throwError() throws IOException {
+            if (error == null) return;
+            if (error instanceof IOException) throw (IOException) error;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            throw new IOException(error);
+        }
+
+        private void waitForBlocks() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException("Patch applying is interrupted"));
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits for all submitted blocks to be written and reports them
+         */
+        void drain() throws IOException {
+            while (true) {
+                report();
+                synchronized (this) {
+                    throwError();
+                    if (completed == submitted) break;
+                    waitForBlocks();
+                }
+            }
+            report();
+        }
+
+        /**
+         * Waits for blocks in flight to be written or dropped after failure
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (completed < submitted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return signature of written result or null if it couldn't be built
+         */
+        synchronized BlockSignature signature() {
+            if (!verify) return null;
+            if (manifest.chunking != null) {
+                // every chunk is checked by its hash when it is written
+                return isChunksSignature(manifest) ?
+                        BlockSignature.fromMap(expectedBlocksHashes(manifest)) : null;
+            }
+            if (builder == null || builder.position() != manifest.size) return null;
+            builder.finish();
+            return builder.signature();
+        }
+
+        private static final class Slot {
+            final byte[] data;
+            final ByteBuffer buffer;
+            byte[] storedData = new byte[0];
+            ByteBuffer storedBuffer = ByteBuffer.wrap(storedData);
+            final MessageDigest digest;
+            final byte[] digestBuffer;
+            PatchBlock block;
+            long offset;
+            boolean last;
+            int dataSize;
+            int length;
+            int applied;
+            long progress;
+            boolean aligned;
+            boolean zero;
+            boolean done;
+
+            Slot(int bufferSize, MessageDigest digest) {
+                data = new byte[bufferSize];
+                buffer = ByteBuffer.wrap(data);
+                this.digest = digest;
+                digestBuffer = new byte[digest.getDigestLength()];
+            }
+        }
+    }
+
+    /**
+     * Source of blocks data
+     */
+    private abstract static class DataSource {
+        /**
+         * Reads up to buffer remaining bytes at data position
+         *
+         * @return count of bytes read, -1 on the end of data
+         */
+        abstract int read(long position, ByteBuffer buffer) throws IOException;
+
+        /**
+         * Copies up to count bytes at data position to the target current position
+         */
+        abstract void copy(long position, long count, FileChannel target) throws IOException;
+    }
+
+    /**
+     * Zeros of zero blocks which have to be written
+     */
+    private static final class ZeroDataSource extends DataSource {
+        @Override
+        int read(long position, ByteBuffer buffer) {
+            int count = Math.min(buffer.remaining(), ZeroBlocks.zeros.length);
+            buffer.put(ZeroBlocks.zeros, 0, count);
+            return count;
+        }
+
+        @Override
+        void copy(long position, long count, FileChannel target) throws IOException {
+            while (count > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(ZeroBlocks.zeros, 0,
+                        (int) Math.min(count, ZeroBlocks.zeros.length));
+                count -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static final class ChannelDataSource extends DataSource {
+        private final FileChannel channel;
+        private final PatchListener listener;
+        private final PatchListener.Source source;
+
+        ChannelDataSource(FileChannel channel, PatchListener listener,
+                          PatchListener.Source source) {
+            this.channel = channel;
+            this.listener = listener;
+            this.source = source;
+        }
+
+        @Override
+        int read(long position, ByteBuffer buffer) throws IOException {
+            int read = channel.read(buffer, position);
+            if (read > 0) {
+                listener.onRead(source, read);
+            }
+            return read;
+        }
+
+        @Override
+        void copy(long position, long count, FileChannel target) throws IOException {
+            listener.onRead(source, transfer(channel, position, count, target));
+        }
+    }
+
+    /**
+     * Decompressed data of one new block, loaded before the block is written
+     */
+    private static final class CompressedDataSource extends DataSource {
+        private final DataSource patchData;
+        private final PatchListener listener;
+        private byte[] storedData = new byte[0];
+        private ByteBuffer storedBuffer = ByteBuffer.wrap(storedData);
+        private byte[] data = new byte[0];
+        private ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+        private int dataSize;
+
+        CompressedDataSource(DataSource patchData, PatchListener listener) {
+            this.patchData = patchData;
+            this.listener = listener;
+        }
+
+        void load(PatchBlock block, int blocksize) throws IOException {
+            BlockCodec codec = BlockCodec.forName(block.codec);
+            if (codec == null) {
+                throw new IOException("Unknown patch block codec: " + block.codec);
+            }
+            if (storedData.length < block.storedSize) {
+                storedData = new byte[block.storedSize];
+                storedBuffer = ByteBuffer.wrap(storedData);
+                listener.onBufferAllocated(storedData.length);
+            }
+            storedBuffer.clear();
+            storedBuffer.limit(block.storedSize);
+            while (storedBuffer.hasRemaining()) {
+                if (patchData.read(
+                        block.sourceOffset + storedBuffer.position(), storedBuffer) <= 0) {
+                    throw new IOException("Patch data is too short");
+                }
+            }
+            dataSize = block.dataSize(blocksize);
+            if (data.length < dataSize) {
+                data = new byte[dataSize];
+                dataBuffer = ByteBuffer.wrap(data);
+                listener.onBufferAllocated(data.length);
+            }
+            codec.decompress(storedData, 0, block.storedSize, data, 0, dataSize);
+        }
+
+        @Override
+        int read(long position, ByteBuffer buffer) {
+            if (position >= dataSize) return -1;
+            int count = (int) Math.min(buffer.remaining(), dataSize - position);
+            buffer.put(data, (int) position, count);
+            return count;
+        }
+
+        @Override
+        void copy(long position, long count, FileChannel target) throws IOException {
+            if (position >= dataSize) return;
+            dataBuffer.clear();
+            dataBuffer.position((int) position);
+            dataBuffer.limit((int) (position + Math.min(count, dataSize - position)));
+            while (dataBuffer.hasRemaining()) {
+                target.write(dataBuffer);
+            }
+        }
+    }
+
+    /**
+     * Reads "data" entry of the patch sequentially, blocks must be requested in order of positions
+     */
+    private static final class StreamDataSource extends DataSource {
+        private final InputStream stream;
+        private final byte[] buffer;
+        private final ByteBuffer byteBuffer;
+        private long streamPosition = 0;
+
+        StreamDataSource(InputStream stream, byte[] buffer) {
+            this.stream = stream;
+            this.buffer = buffer;
+            byteBuffer = ByteBuffer.wrap(buffer);
+        }
+
+        private boolean seek(long position) throws IOException {
+            if (position < streamPosition) {
+                throw new IOException("Patch data is not in order");
+            }
+            while (streamPosition < position) {
+                long skipped = stream.skip(position - streamPosition);
+                if (skipped <= 0) return false;
+                streamPosition += skipped;
+            }
+            return true;
+        }
+
+        @Override
+        int read(long position, ByteBuffer buffer) throws IOException {
+            if (!seek(position)) return -1;
+            int read = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+                streamPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        void copy(long position, long count, FileChannel target) throws IOException {
+            if (!seek(position)) return;
+            long copied = 0;
+            while (copied < count) {
+                int read = stream.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+                if (read < 0) break;
+                byteBuffer.clear();
+                byteBuffer.limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    target.write(byteBuffer);
+                }
+                copied += read;
+                streamPosition += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Block of the patch manifest, placed at offset of the new file.
+ * Data is taken from "data" entry of the patch for new blocks,
+ * from already patched block at source offset for blocks from patch,
+ * from the old file at source offset for blocks from old file.
+ * Zero blocks have no data, they are left as holes in the result.
+ */
+final class PatchBlock {
+    static final int NEW = 0;
+    static final int FROM_PATCH = 1;
+    static final int FROM_OLD = 2;
+    static final int ZERO = 3;
+
+    final long offset;
+    final int kind;
+    final long sourceOffset;
+    /**
+     * Size of block data, -1 if not set and block size of the patch is used
+     */
+    final int dataSize;
+    /**
+     * Array with the hash of block data at hash offset, null if block has no hash.
+     * Hashes of blocks made together are packed in one array, see {@link PackedHashes}
+     */
+    final byte[] hash;
+    final int hashOffset;
+    final int hashLength;
+    /**
+     * Name of codec of compressed new block data, null if data is stored raw
+     */
+    final String codec;
+    /**
+     * Size of compressed data in "data" entry of the patch, -1 if data is stored raw
+     */
+    final int storedSize;
+
+    PatchBlock(long offset, int kind, long sourceOffset, int dataSize, byte[] hash) {
+        this(offset, kind, sourceOffset, dataSize, hash, null, -1);
+    }
+
+    PatchBlock(long offset, int kind, long sourceOffset, int dataSize, byte[] hash,
+               String codec, int storedSize) {
+        this(offset, kind, sourceOffset, dataSize, hash, 0, hash == null ? 0 : hash.length,
+                codec, storedSize);
+    }
+
+    PatchBlock(long offset, int kind, long sourceOffset, int dataSize,
+               byte[] hash, int hashOffset, int hashLength, String codec, int storedSize) {
+        this.offset = offset;
+        this.kind = kind;
+        this.sourceOffset = sourceOffset;
+        this.dataSize = dataSize;
+        this.hash = hash;
+        this.hashOffset = hashOffset;
+        this.hashLength = hashLength;
+        this.codec = codec;
+        this.storedSize = storedSize;
+    }
+
+    /**
+     * @return block at the same offset with the same hash, placed another way
+     */
+    PatchBlock moved(int kind, long sourceOffset, int dataSize, String codec, int storedSize) {
+        return new PatchBlock(offset, kind, sourceOffset, dataSize,
+                hash, hashOffset, hashLength, codec, storedSize);
+    }
+
+    boolean hashEquals(byte[] digest) {
+        if (hash == null || digest.length != hashLength) return false;
+        for (int i = 0; i < hashLength; i++) {
+            if (hash[hashOffset + i] != digest[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return hex hash of block data, null if block has no hash
+     */
+    String hashHex() {
+        return hash == null ? null : Hex.encode(hash, hashOffset, hashLength);
+    }
+
+    int dataSize(int blocksize) {
+        return dataSize < 0 ? blocksize : dataSize;
+    }
+
+    /**
+     * Size of block data in "data" entry of the patch
+     */
+    int storedSize(int blocksize) {
+        return codec == null ? dataSize(blocksize) : storedSize;
+    }
+}
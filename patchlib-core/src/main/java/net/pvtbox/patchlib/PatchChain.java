@@ -0,0 +1,182 @@
+package net.pvtbox.patchlib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Contents of the last version of a file patched by a chain of patches,
+ * as extents of the old file of the first patch and of new blocks data of the patches.
+ * Blocks copied from old file by every next patch are resolved through extents
+ * of the previous version, so intermediate versions are never built.
+ */
+final class PatchChain {
+    /**
+     * Index of the patch for extents of zero blocks
+     */
+    static final int ZERO = -2;
+
+    static final class Extent {
+        final long offset;
+        final int length;
+        /**
+         * Index of the patch with data of the extent, -1 for extent of the old file,
+         * {@link #ZERO} for extent of zeros
+         */
+        final int patch;
+        /**
+         * New block of the patch with data of the extent, null for extent of the old file
+         * or of zeros
+         */
+        final PatchBlock block;
+        /**
+         * Offset in the old file, or in data of the new block
+         */
+        final long source;
+        /**
+         * Block of the last patch with hash of the extent, if the whole block is this extent
+         */
+        PatchBlock hashed;
+
+        Extent(long offset, int length, int patch, PatchBlock block, long source) {
+            this.offset = offset;
+            this.length = length;
+            this.patch = patch;
+            this.block = block;
+            this.source = source;
+        }
+    }
+
+    private final ArrayList<PatchManifest> manifests = new ArrayList<>();
+    private ArrayList<Extent> extents = new ArrayList<>();
+
+    /**
+     * Adds patch created for the last version of the chain
+     */
+    void add(PatchManifest manifest) throws IOException {
+        int patch = manifests.size();
+        PatchManifest previous = patch > 0 ? manifests.get(patch - 1) : null;
+        // hashes of the same file are comparable if it is signed the same way only
+        if (previous != null && manifest.oldHash != null &&
+                previous.blocksize == manifest.blocksize && previous.hash == manifest.hash &&
+                Objects.equals(previous.chunking, manifest.chunking) &&
+                !manifest.oldHash.equals(previous.newHash)) {
+            throw new IOException(String.format(
+                    "Patch %s is not created for result of previous patch", patch));
+        }
+
+        ArrayList<Extent> result = new ArrayList<>(manifest.blocks.size());
+        for (PatchBlock block : manifest.blocks) {
+            int first = result.size();
+            switch (block.kind) {
+                case PatchBlock.NEW:
+                    result.add(new Extent(
+                            block.offset, length(manifest, block), patch, block, 0));
+                    break;
+                case PatchBlock.ZERO:
+                    result.add(new Extent(
+                            block.offset, length(manifest, block), ZERO, null, 0));
+                    break;
+                case PatchBlock.FROM_PATCH:
+                    PatchBlock source = manifest.blockAt(block.sourceOffset);
+                    if (source != null && source.kind == PatchBlock.ZERO) {
+                        result.add(new Extent(
+                                block.offset, length(manifest, source), ZERO, null, 0));
+                        break;
+                    }
+                    if (source == null || source.kind != PatchBlock.NEW) {
+                        throw new IOException(
+                                "Patch block not found at offset " + block.sourceOffset);
+                    }
+                    result.add(new Extent(
+                            block.offset, length(manifest, source), patch, source, 0));
+                    break;
+                default:
+                    if (patch == 0) {
+                        result.add(new Extent(
+                                block.offset, length(manifest, block), -1, null,
+                                block.sourceOffset));
+                    } else {
+                        slice(block.sourceOffset, length(manifest, block), block.offset, result);
+                    }
+            }
+            if (result.size() == first + 1) {
+                result.get(first).hashed = block;
+            }
+        }
+        manifests.add(manifest);
+        extents = result;
+    }
+
+    private static int length(PatchManifest manifest, PatchBlock block) {
+        return (int) Math.max(0, Math.min(
+                block.dataSize(manifest.blocksize), manifest.size - block.offset));
+    }
+
+    /**
+     * Adds extents of the last version range to the result placed at given offset
+     */
+    private void slice(long start, int length, long offset, ArrayList<Extent> result)
+            throws IOException {
+        int low = 0;
+        int high = extents.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (extents.get(middle).offset <= start) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        long position = start;
+        long end = start + length;
+        for (int i = low; i < extents.size() && position < end; i++) {
+            Extent extent = extents.get(i);
+            long skip = position - extent.offset;
+            if (skip < 0) break;
+            if (skip >= extent.length) continue;
+            int count = (int) Math.min(extent.length - skip, end - position);
+            result.add(new Extent(offset + position - start, count,
+                    extent.patch, extent.block, extent.source + skip));
+            position += count;
+        }
+        if (position < end) {
+            throw new IOException(String.format(
+                    "Patch block at offset %s is out of the patched file", offset));
+        }
+    }
+
+    int size() {
+        return manifests.size();
+    }
+
+    PatchManifest manifest(int patch) {
+        return manifests.get(patch);
+    }
+
+    /**
+     * Extents of the last version sorted by offset
+     */
+    ArrayList<Extent> extents() {
+        return extents;
+    }
+}
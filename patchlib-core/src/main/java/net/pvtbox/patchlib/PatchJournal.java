@@ -0,0 +1,214 @@
+package net.pvtbox.patchlib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Journal of patch applying kept next to the partial result, so applying of the same patch
+ * continues from the last checkpoint after the process is killed.
+ * Journal starts with the patch identity and has records appended as applying goes,
+ * record torn by the crash is ignored. Identity includes digest of the whole manifest,
+ * so patches between the same versions with another layout of blocks or data don't match.
+ */
+final class PatchJournal {
+    static final String partialSuffix = ".partial";
+    static final String journalSuffix = ".journal";
+    static final String dataSuffix = ".data";
+    /**
+     * Bytes written to the partial result between checkpoints,
+     * every checkpoint waits for the data to reach the disk
+     */
+    static final long checkpointInterval = 16 * 1024 * 1024;
+
+    private static final byte[] magic = {'P', 'V', 'T', 'J'};
+    private static final int version = 2;
+    private static final int recordExtracted = 1;
+    private static final int recordCheckpoint = 2;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final File journalFile;
+    private final File partialFile;
+    private final File dataFile;
+    private FileOutputStream journal;
+    private int appliedBlocks = 0;
+    private boolean dataExtracted = false;
+    private long uncheckpointed = 0;
+
+    private PatchJournal(String resultPath) {
+        journalFile = new File(resultPath + journalSuffix);
+        partialFile = new File(resultPath + partialSuffix);
+        dataFile = new File(resultPath + dataSuffix);
+    }
+
+    /**
+     * Opens journal of applying the patch to the file with given hash,
+     * journal and partial result of another patch are discarded
+     */
+    static PatchJournal open(String resultPath, PatchManifest manifest, String fileHash)
+            throws IOException {
+        PatchJournal journal = new PatchJournal(resultPath);
+        byte[] header = journal.header(manifest, fileHash);
+        if (!journal.read(header) ||
+                (journal.appliedBlocks > 0 && !journal.partialFile.exists())) {
+            journal.delete();
+            journal.appliedBlocks = 0;
+            journal.dataExtracted = false;
+            journal.journal = new FileOutputStream(journal.journalFile, false);
+            journal.append(header);
+        } else {
+            journal.journal = new FileOutputStream(journal.journalFile, true);
+        }
+        return journal;
+    }
+
+    private byte[] header(PatchManifest manifest, String fileHash) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(magic);
+        PatchManifest.writeVarLong(header, version);
+        for (String value : new String[]{fileHash, manifest.oldHash, manifest.newHash}) {
+            byte[] data = value == null ? new byte[0] : value.getBytes(utf8);
+            PatchManifest.writeVarLong(header, data.length);
+            header.write(data);
+        }
+        PatchManifest.writeVarLong(header, manifest.size);
+        PatchManifest.writeVarLong(header, manifest.blocks.size());
+        try {
+            header.write(MessageDigest.getInstance("MD5").digest(manifest.toBinary()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        return header.toByteArray();
+    }
+
+    /**
+     * @return true if existing journal is for the same patch
+     */
+    private boolean read(byte[] header) throws IOException {
+        InputStream stream;
+        try {
+            stream = new FileInputStream(journalFile);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        boolean samePatch = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            byte[] journalHeader = new byte[header.length];
+            in.readFully(journalHeader);
+            if (!Arrays.equals(header, journalHeader)) return false;
+            samePatch = true;
+            while (true) {
+                int record = in.read();
+                if (record == recordExtracted) {
+                    dataExtracted = true;
+                } else if (record == recordCheckpoint) {
+                    appliedBlocks = (int) PatchManifest.readVarLong(in);
+                } else {
+                    return true;
+                }
+            }
+        } catch (EOFException e) {
+            // last record is torn
+            return samePatch;
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        journal.write(record);
+        journal.getFD().sync();
+    }
+
+    File partialFile() {
+        return partialFile;
+    }
+
+    File dataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Count of blocks already written to the partial result, in order they are applied
+     */
+    int appliedBlocks() {
+        return appliedBlocks;
+    }
+
+    boolean isDataExtracted() {
+        return dataExtracted && dataFile.exists();
+    }
+
+    void dataExtracted() throws IOException {
+        append(new byte[]{recordExtracted});
+        dataExtracted = true;
+    }
+
+    /**
+     * Block is written to the partial result, checkpoint is made once enough data is written
+     *
+     * @param appliedBlocks count of blocks written so far
+     */
+    void blockWritten(int appliedBlocks, int dataSize, FileChannel partial) throws IOException {
+        uncheckpointed += dataSize;
+        if (uncheckpointed < checkpointInterval) return;
+        partial.force(false);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(recordCheckpoint);
+        PatchManifest.writeVarLong(record, appliedBlocks);
+        append(record.toByteArray());
+        this.appliedBlocks = appliedBlocks;
+        uncheckpointed = 0;
+    }
+
+    void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Deletes journal with the partial result and extracted data
+     */
+    void delete() throws IOException {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        partialFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dataFile.delete();
+    }
+}
@@ -0,0 +1,140 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Receives timings and counters of signing, patch creation and applying,
+ * override methods of interest. Methods are called on the thread doing the work,
+ * signing and applying with an executor report from the calling thread only,
+ * so implementations should be cheap and thread safe when shared.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class PatchListener {
+    static final PatchListener none = new PatchListener() {
+    };
+
+    public enum Phase {
+        /**
+         * Reading and hashing of the file, including signature cache lookup
+         */
+        SIGN,
+        /**
+         * Search of new file blocks in the old file signature
+         */
+        DIFF,
+        /**
+         * Compression of new blocks to a temporary file
+         */
+        COMPRESS,
+        /**
+         * Writing of the patch manifest and data
+         */
+        WRITE,
+        /**
+         * Reading of the patch manifest and extracting of its data to a temporary file
+         */
+        EXTRACT,
+        /**
+         * Writing of blocks to the result, including reading of patch data
+         * when it is applied straight from the stream
+         */
+        APPLY,
+        /**
+         * Final check of the result signature and moving it to its place
+         */
+        VERIFY
+    }
+
+    public enum Source {
+        /**
+         * File being signed or new file the patch is created from
+         */
+        FILE,
+        /**
+         * File the patch is applied to
+         */
+        OLD_FILE,
+        /**
+         * Patch stream
+         */
+        PATCH,
+        /**
+         * Temporary file with patch data
+         */
+        TEMP,
+        /**
+         * Result of patch applying
+         */
+        RESULT
+    }
+
+    public enum BlockKind {
+        FROM_OLD,
+        FROM_PATCH,
+        NEW,
+        ZERO
+    }
+
+    /**
+     * Phase is finished, phases of one operation don't overlap
+     */
+    public void onPhase(Phase phase, long nanos) {
+    }
+
+    public void onRead(Source source, long bytes) {
+    }
+
+    public void onWrite(Source source, long bytes) {
+    }
+
+    /**
+     * Block of the patch is created or applied
+     */
+    public void onBlock(BlockKind kind, int dataSize) {
+    }
+
+    /**
+     * Phase processed done of total bytes, reported between blocks
+     */
+    public void onProgress(Phase phase, long done, long total) {
+    }
+
+    /**
+     * Buffer of given size is allocated for data of files
+     */
+    public void onBufferAllocated(int size) {
+    }
+
+    static PatchListener of(PatchListener listener) {
+        return listener == null ? none : listener;
+    }
+
+    static BlockKind blockKind(int kind) {
+        switch (kind) {
+            case PatchBlock.NEW:
+                return BlockKind.NEW;
+            case PatchBlock.FROM_PATCH:
+                return BlockKind.FROM_PATCH;
+            case PatchBlock.ZERO:
+                return BlockKind.ZERO;
+            default:
+                return BlockKind.FROM_OLD;
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package net.pvtbox.patchlib;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.Moshi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okio.Okio;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Typed patch manifest, stored either as JSON map in "info" entry of the patch
+ * or in compact binary form in "manifest" entry.
+ */
+final class PatchManifest {
+    static final String infoEntryName = "info";
+    static final String manifestEntryName = "manifest";
+
+    private static final byte[] magic = {'P', 'V', 'T', 'M'};
+    private static final int version = 1;
+    /**
+     * Version of manifests with compressed blocks, not readable by older versions
+     */
+    private static final int compressedVersion = 2;
+    /**
+     * Version of manifests with header flags of optional header fields
+     */
+    private static final int headerFlagsVersion = 3;
+    /**
+     * Version of manifests with zero blocks, header flags are always written.
+     * Older versions would read zero blocks as blocks of the old file
+     */
+    private static final int zeroBlocksVersion = 4;
+    private static final int headerChunking = 1;
+    private static final int headerHash = 2;
+    private static final int flagNew = 1;
+    private static final int flagFromPatch = 2;
+    private static final int flagDataSize = 4;
+    private static final int flagHash = 8;
+    private static final int flagCodec = 16;
+    private static final int flagZero = 32;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    // limits of sizes read from the manifest, so broken manifest is not allocated for
+    private static final int maxHashLength = 64;
+    private static final int maxStringLength = 4096;
+
+    String newHash;
+    String oldHash;
+    int blocksize = Patch.defaultBlockSize;
+    long size;
+    long timeModify;
+    String layout;
+    /**
+     * Chunking of "cdc" layout, null for fixed size blocks
+     */
+    Chunking chunking;
+    /**
+     * Algorithm of blocks hashes and hash of the file
+     */
+    BlockHash hash = BlockHash.md5;
+    /**
+     * Blocks sorted by offset
+     */
+    final List<PatchBlock> blocks;
+
+    PatchManifest(List<PatchBlock> blocks) {
+        this.blocks = blocks;
+    }
+
+    PatchBlock blockAt(long offset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleOffset = blocks.get(middle).offset;
+            if (middleOffset < offset) {
+                low = middle + 1;
+            } else if (middleOffset > offset) {
+                high = middle - 1;
+            } else {
+                return blocks.get(middle);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return block with the greatest offset not greater than the position,
+     * null if the position is before the first block
+     */
+    PatchBlock blockContaining(long position) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        PatchBlock found = null;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            PatchBlock block = blocks.get(middle);
+            if (block.offset <= position) {
+                found = block;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Patch info in the form returned by {@link Patch#createPatch}
+     */
+    Map<String, Object> toMap() {
+        TreeMap<Long, Object> patchBlocks = new TreeMap<>();
+        for (PatchBlock block : blocks) {
+            HashMap<String, Object> patchEntry = new HashMap<>();
+            if (block.hash != null) {
+                patchEntry.put("hash", block.hashHex());
+            }
+            patchEntry.put("new", block.kind == PatchBlock.NEW);
+            if (block.kind != PatchBlock.NEW) {
+                patchEntry.put("from_patch", block.kind == PatchBlock.FROM_PATCH);
+            }
+            if (block.kind == PatchBlock.ZERO) {
+                patchEntry.put("zero", true);
+            }
+            patchEntry.put("offset", block.sourceOffset);
+            if (block.dataSize >= 0) {
+                patchEntry.put("data_size", block.dataSize);
+            }
+            if (block.codec != null) {
+                patchEntry.put("codec", block.codec);
+                patchEntry.put("stored_size", block.storedSize);
+            }
+            patchBlocks.put(block.offset, patchEntry);
+        }
+
+        HashMap<String, Object> patch = new HashMap<>();
+        patch.put("blocks", patchBlocks);
+        patch.put("new_hash", newHash);
+        patch.put("blocksize", blocksize);
+        if (layout != null) {
+            patch.put("layout", layout);
+        }
+        if (chunking != null) {
+            patch.put("chunk_min", chunking.getMinSize());
+            patch.put("chunk_avg", chunking.getAvgSize());
+            patch.put("chunk_max", chunking.getMaxSize());
+        }
+        if (hash != BlockHash.md5) {
+            patch.put("hash_algorithm", hash.name());
+        }
+        patch.put("size", size);
+        patch.put("time_modify", timeModify);
+        if (oldHash != null) {
+            patch.put("old_hash", oldHash);
+        }
+        return patch;
+    }
+
+    byte[] toJson() {
+        Moshi moshi = new Moshi.Builder().build();
+        JsonAdapter<Map> jsonAdapter = moshi.adapter(Map.class);
+        return jsonAdapter.toJson(toMap()).getBytes();
+    }
+
+    /**
+     * Reads JSON manifest directly into typed blocks, without intermediate maps of boxed values
+     */
+    static PatchManifest readJson(InputStream stream) throws IOException {
+        JsonReader reader = JsonReader.of(Okio.buffer(Okio.source(stream)));
+        PatchManifest manifest = new PatchManifest(new ArrayList<PatchBlock>());
+        int[] chunkSizes = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "blocks":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        long offset = Long.parseLong(reader.nextName());
+                        manifest.blocks.add(readJsonBlock(reader, offset));
+                    }
+                    reader.endObject();
+                    break;
+                case "new_hash":
+                    manifest.newHash = reader.nextString();
+                    break;
+                case "old_hash":
+                    manifest.oldHash = reader.nextString();
+                    break;
+                case "blocksize":
+                    manifest.blocksize = reader.nextInt();
+                    break;
+                case "size":
+                    manifest.size = reader.nextLong();
+                    break;
+                case "time_modify":
+                    manifest.timeModify = reader.nextLong();
+                    break;
+                case "layout":
+                    manifest.layout = reader.nextString();
+                    break;
+                case "hash_algorithm":
+                    manifest.hash = hash(reader.nextString());
+                    break;
+                case "chunk_min":
+                case "chunk_avg":
+                case "chunk_max":
+                    if (chunkSizes == null) chunkSizes = new int[3];
+                    chunkSizes[name.equals("chunk_min") ? 0 : name.equals("chunk_avg") ? 1 : 2] =
+                            reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (chunkSizes != null) {
+            manifest.chunking = chunking(chunkSizes[0], chunkSizes[1], chunkSizes[2]);
+        }
+        manifest.sortBlocks();
+        return manifest;
+    }
+
+    private static PatchBlock readJsonBlock(JsonReader reader, long offset) throws IOException {
+        boolean isNew = false;
+        boolean fromPatch = false;
+        boolean zero = false;
+        long sourceOffset = -1;
+        int dataSize = -1;
+        byte[] hash = null;
+        String codec = null;
+        int storedSize = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "new":
+                    isNew = reader.nextBoolean();
+                    break;
+                case "from_patch":
+                    fromPatch = reader.nextBoolean();
+                    break;
+                case "zero":
+                    zero = reader.nextBoolean();
+                    break;
+                case "offset":
+                    sourceOffset = reader.nextLong();
+                    break;
+                case "data_size":
+                    dataSize = reader.nextInt();
+                    break;
+                case "hash":
+                    hash = Hex.decode(reader.nextString());
+                    break;
+                case "codec":
+                    codec = reader.nextString();
+                    break;
+                case "stored_size":
+                    storedSize = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (sourceOffset < 0) {
+            throw new IOException("Patch block offset not found");
+        }
+        if (codec != null && storedSize < 0) {
+            throw new IOException("Patch block stored size not found");
+        }
+        int kind = isNew ? PatchBlock.NEW : fromPatch ? PatchBlock.FROM_PATCH :
+                zero ? PatchBlock.ZERO : PatchBlock.FROM_OLD;
+        return new PatchBlock(offset, kind, sourceOffset, dataSize, hash, codec, storedSize);
+    }
+
+    /**
+     * Zero blocks are not known to older versions, such manifests are written
+     * in binary form of the version they reject
+     */
+    boolean hasZeroBlocks() {
+        for (PatchBlock block : blocks) {
+            if (block.kind == PatchBlock.ZERO) return true;
+        }
+        return false;
+    }
+
+    byte[] toBinary() throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(64 + blocks.size() * 24);
+        DataOutputStream out = new DataOutputStream(result);
+        boolean compressed = false;
+        for (PatchBlock block : blocks) {
+            if (block.codec != null) {
+                compressed = true;
+                break;
+            }
+        }
+        boolean zero = hasZeroBlocks();
+        out.write(magic);
+        int headerFlags = 0;
+        if (chunking != null) headerFlags |= headerChunking;
+        if (hash != BlockHash.md5) headerFlags |= headerHash;
+        writeVarLong(out, zero ? zeroBlocksVersion :
+                headerFlags != 0 ? headerFlagsVersion :
+                compressed ? compressedVersion : version);
+        writeString(out, newHash);
+        writeString(out, oldHash);
+        writeString(out, layout);
+        writeVarLong(out, blocksize);
+        writeVarLong(out, size);
+        writeVarLong(out, timeModify);
+        if (headerFlags != 0 || zero) {
+            writeVarLong(out, headerFlags);
+        }
+        if (chunking != null) {
+            writeVarLong(out, chunking.getMinSize());
+            writeVarLong(out, chunking.getAvgSize());
+            writeVarLong(out, chunking.getMaxSize());
+        }
+        if (hash != BlockHash.md5) {
+            writeString(out, hash.name());
+        }
+
+        int hashLength = 0;
+        for (PatchBlock block : blocks) {
+            if (block.hash != null) {
+                hashLength = block.hashLength;
+                break;
+            }
+        }
+        writeVarLong(out, hashLength);
+        writeVarLong(out, blocks.size());
+        long previousOffset = 0;
+        for (PatchBlock block : blocks) {
+            int flags = 0;
+            if (block.kind == PatchBlock.NEW) flags |= flagNew;
+            if (block.kind == PatchBlock.FROM_PATCH) flags |= flagFromPatch;
+            if (block.kind == PatchBlock.ZERO) flags |= flagZero;
+            if (block.dataSize >= 0) flags |= flagDataSize;
+            if (block.hash != null) {
+                if (block.hashLength != hashLength) {
+                    throw new IOException("Patch blocks hashes have different length");
+                }
+                flags |= flagHash;
+            }
+            if (block.codec != null) flags |= flagCodec;
+            out.writeByte(flags);
+            writeVarLong(out, block.offset - previousOffset);
+            writeVarLong(out, block.sourceOffset);
+            if (block.dataSize >= 0) {
+                writeVarLong(out, block.dataSize);
+            }
+            if (block.hash != null) {
+                out.write(block.hash, block.hashOffset, block.hashLength);
+            }
+            if (block.codec != null) {
+                writeString(out, block.codec);
+                writeVarLong(out, block.storedSize);
+            }
+            previousOffset = block.offset;
+        }
+        out.flush();
+        return result.toByteArray();
+    }
+
+    static PatchManifest readBinary(InputStream stream) throws IOException {
+        // reads of single bytes go to the buffer, tar stream returns them sign extended
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        byte[] header = new byte[magic.length];
+        in.readFully(header);
+        if (!Arrays.equals(header, magic)) {
+            throw new IOException("Invalid patch manifest");
+        }
+        long manifestVersion = readVarLong(in);
+        if (manifestVersion < version || manifestVersion > zeroBlocksVersion) {
+            throw new IOException("Unsupported patch manifest version: " + manifestVersion);
+        }
+        String newHash = readString(in);
+        String oldHash = readString(in);
+        String layout = readString(in);
+        int blocksize = (int) readVarLong(in);
+        long size = readVarLong(in);
+        long timeModify = readVarLong(in);
+        long headerFlags = manifestVersion >= headerFlagsVersion ? readVarLong(in) : 0;
+        Chunking chunking = null;
+        if ((headerFlags & headerChunking) != 0) {
+            chunking = chunking(readVarLong(in), readVarLong(in), readVarLong(in));
+        }
+        BlockHash blockHash = BlockHash.md5;
+        if ((headerFlags & headerHash) != 0) {
+            blockHash = hash(readString(in));
+        }
+        int hashLength = readSize(in, maxHashLength);
+        int count = readSize(in, Integer.MAX_VALUE);
+
+        ArrayList<PatchBlock> blocks = new ArrayList<>(Math.min(count, 4096));
+        PackedHashes hashes = new PackedHashes(hashLength, Math.min(count, 4096));
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = in.readUnsignedByte();
+            offset += readVarLong(in);
+            long sourceOffset = readVarLong(in);
+            int dataSize = (flags & flagDataSize) != 0 ? (int) readVarLong(in) : -1;
+            byte[] hash = null;
+            int hashOffset = 0;
+            if ((flags & flagHash) != 0) {
+                hashOffset = hashes.reserve();
+                hash = hashes.array();
+                in.readFully(hash, hashOffset, hashLength);
+            }
+            String codec = null;
+            int storedSize = -1;
+            if ((flags & flagCodec) != 0) {
+                codec = readString(in);
+                storedSize = (int) readVarLong(in);
+            }
+            int kind = (flags & flagNew) != 0 ? PatchBlock.NEW :
+                    (flags & flagFromPatch) != 0 ? PatchBlock.FROM_PATCH :
+                    (flags & flagZero) != 0 ? PatchBlock.ZERO : PatchBlock.FROM_OLD;
+            blocks.add(new PatchBlock(offset, kind, sourceOffset, dataSize,
+                    hash, hashOffset, hashLength, codec, storedSize));
+        }
+
+        PatchManifest manifest = new PatchManifest(blocks);
+        manifest.newHash = newHash;
+        manifest.oldHash = oldHash;
+        manifest.layout = layout;
+        manifest.blocksize = blocksize;
+        manifest.size = size;
+        manifest.timeModify = timeModify;
+        manifest.chunking = chunking;
+        manifest.hash = blockHash;
+        manifest.sortBlocks();
+        return manifest;
+    }
+
+    private static BlockHash hash(String name) throws IOException {
+        BlockHash hash = BlockHash.forName(name);
+        if (hash == null) {
+            throw new IOException("Unknown patch hash algorithm: " + name);
+        }
+        return hash;
+    }
+
+    private static Chunking chunking(long minSize, long avgSize, long maxSize)
+            throws IOException {
+        try {
+            return new Chunking((int) minSize, (int) avgSize, (int) maxSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void sortBlocks() {
+        Collections.sort(blocks, new Comparator<PatchBlock>() {
+            @Override
+            public int compare(PatchBlock lhs, PatchBlock rhs) {
+                return lhs.offset < rhs.offset ? -1 : lhs.offset == rhs.offset ? 0 : 1;
+            }
+        });
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] data = value.getBytes(utf8);
+        writeVarLong(out, data.length + 1);
+        out.write(data);
+    }
+
+    /**
+     * @throws IOException if the size is out of range
+     */
+    private static int readSize(InputStream in, int max) throws IOException {
+        long size = readVarLong(in);
+        if (size < 0 || size > max) {
+            throw new IOException("Invalid patch manifest");
+        }
+        return (int) size;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readSize(in, maxStringLength + 1);
+        if (length == 0) return null;
+        byte[] data = new byte[length - 1];
+        in.readFully(data);
+        return new String(data, utf8);
+    }
+}
@@ -0,0 +1,195 @@
+package net.pvtbox.patchlib;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Optional settings of patch creation and applying
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PatchOptions {
+    private ManifestFormat manifestFormat = ManifestFormat.JSON;
+    private VerifyMode verifyMode = VerifyMode.INLINE;
+    private BlockCodec codec = null;
+    private Chunking chunking = null;
+    private BlockHash blockHash = BlockHash.md5;
+    private PatchListener listener = null;
+    private CancellationToken cancellation = null;
+    private boolean resumable = false;
+    private ExecutorService executor = null;
+    private boolean coalesceBlocks = false;
+    private boolean zeroBlocks = false;
+    private boolean inPlace = false;
+
+    public ManifestFormat getManifestFormat() {
+        return manifestFormat;
+    }
+
+    public PatchOptions setManifestFormat(ManifestFormat manifestFormat) {
+        this.manifestFormat = manifestFormat;
+        return this;
+    }
+
+    public VerifyMode getVerifyMode() {
+        return verifyMode;
+    }
+
+    public PatchOptions setVerifyMode(VerifyMode verifyMode) {
+        this.verifyMode = verifyMode;
+        return this;
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Codec to compress new blocks of the patch with, null to store them raw.
+     * Blocks which don't get smaller are stored raw anyway.
+     */
+    public PatchOptions setCodec(BlockCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public Chunking getChunking() {
+        return chunking;
+    }
+
+    /**
+     * Creates patch of content defined chunks instead of fixed size blocks,
+     * signatures of both files must be taken with {@link Patch#chunkSignature}
+     * using the same chunking. Null for fixed size blocks.
+     */
+    public PatchOptions setChunking(Chunking chunking) {
+        this.chunking = chunking;
+        return this;
+    }
+
+    public BlockHash getBlockHash() {
+        return blockHash;
+    }
+
+    /**
+     * Algorithm of blocks hashes of the patch, signatures passed to create patch
+     * must be taken with the same algorithm. Peers of older versions accept MD5 only.
+     */
+    public PatchOptions setBlockHash(BlockHash blockHash) {
+        this.blockHash = blockHash;
+        return this;
+    }
+
+    public PatchListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Listener of timings and counters of patch creation or applying, null for none
+     */
+    public PatchOptions setListener(PatchListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Token to cancel patch creation or applying with, null if it can't be cancelled
+     */
+    public PatchOptions setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+        return this;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * Keeps partial result with the journal of applied blocks next to the result,
+     * so applying of the same patch after the process is killed continues
+     * from the last checkpoint instead of starting over
+     */
+    public PatchOptions setResumable(boolean resumable) {
+        this.resumable = resumable;
+        return this;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executor to decompress, hash and write blocks on while patch is applied, so reading
+     * of blocks data overlaps with hashing and writing of the result.
+     * Null to apply blocks one by one on the calling thread.
+     */
+    public PatchOptions setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public boolean isCoalesceBlocks() {
+        return coalesceBlocks;
+    }
+
+    /**
+     * Merges runs of blocks copied from the old file and runs of new blocks into extents,
+     * so size of the manifest and work of applying depend on count of changed regions
+     * rather than on count of blocks. Result of such patch is checked by the whole file hash.
+     */
+    public PatchOptions setCoalesceBlocks(boolean coalesceBlocks) {
+        this.coalesceBlocks = coalesceBlocks;
+        return this;
+    }
+
+    public boolean isZeroBlocks() {
+        return zeroBlocks;
+    }
+
+    /**
+     * Stores blocks of zeros as zero blocks without data, such blocks are left as holes
+     * in the result where the file system supports sparse files.
+     * Patches with zero blocks always have the binary manifest of the version
+     * older versions of the library reject, whatever the manifest format is.
+     */
+    public PatchOptions setZeroBlocks(boolean zeroBlocks) {
+        this.zeroBlocks = zeroBlocks;
+        return this;
+    }
+
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    /**
+     * Applies patch to the file itself when the result path is the path of the file
+     * and the patch keeps the start of the file, as for the file grown at the end.
+     * Only the end of the file is written and checked. The end is saved next to the file
+     * before it is written, so the file is restored if applying fails. If applying is
+     * interrupted, the file is restored when a patch is applied to it in place again.
+     */
+    public PatchOptions setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+        return this;
+    }
+}
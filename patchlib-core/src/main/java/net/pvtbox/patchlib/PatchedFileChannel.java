@@ -0,0 +1,370 @@
+package net.pvtbox.patchlib;
+
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Read only view of the file patched by a patch, the patch is not applied.
+ * Reads are resolved through the patch blocks to the old file and to data of the patch
+ * on demand, so reading can start at any position right away.
+ * Compressed blocks are decompressed as a whole, checked by their hashes
+ * and kept in a small cache; the rest of the data is read as is and is not checked,
+ * the result checked by the file hash is given by {@link Patch#acceptPatch} only.
+ * Same as {@link java.nio.channels.SeekableByteChannel}, which is not available
+ * on all supported Android versions, and the stream of the view is
+ * {@link java.nio.channels.Channels#newInputStream}. Reads are serialized.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PatchedFileChannel implements ReadableByteChannel {
+    /**
+     * Count of decompressed blocks kept in memory
+     */
+    static final int cacheSize = 4;
+
+    private final PatchManifest manifest;
+    private final RandomAccessFile patchFile;
+    private final RandomAccessFile originalFile;
+    private final long dataOffset;
+    private final long dataSize;
+    private final PatchListener listener;
+    private final MessageDigest blockDigest;
+    private final byte[] digestBuffer;
+    private final PatchBlock[] cachedBlocks = new PatchBlock[cacheSize];
+    private final byte[][] cachedData = new byte[cacheSize][];
+    private final long[] cacheUses = new long[cacheSize];
+    private long uses = 0;
+    private byte[] storedData = new byte[0];
+    private ByteBuffer storedBuffer = ByteBuffer.wrap(storedData);
+    private long position = 0;
+    private boolean open = true;
+
+    /**
+     * @param filePath path of the file the patch is created for, may be missing
+     *                 if the patch doesn't copy blocks of the old file
+     */
+    PatchedFileChannel(String filePath, String patchFilePath, String fileHash,
+                       PatchListener listener)
+            throws IOException {
+        this.listener = listener;
+        PatchManifest manifest = null;
+        long dataOffset = -1;
+        long dataSize = 0;
+        CountingStream counter = new CountingStream(new FileInputStream(patchFilePath));
+        try {
+            // data entry is read in place, so the patch is read up to its start only
+            TarInputStream tis = new TarInputStream(counter);
+            TarEntry entry;
+            while ((manifest == null || dataOffset < 0) && (entry = tis.getNextEntry()) != null) {
+                if (entry.getName().equals(PatchManifest.infoEntryName)) {
+                    manifest = PatchManifest.readJson(tis);
+                } else if (entry.getName().equals(PatchManifest.manifestEntryName)) {
+                    manifest = PatchManifest.readBinary(tis);
+                } else if (entry.getName().equals("data")) {
+                    dataOffset = counter.count;
+                    dataSize = entry.getSize();
+                }
+            }
+        } finally {
+            counter.close();
+        }
+        listener.onRead(PatchListener.Source.PATCH, counter.count);
+        if (manifest == null) {
+            throw new IOException("Patch info not found");
+        }
+        if (manifest.oldHash != null && fileHash != null && !fileHash.equals(manifest.oldHash)) {
+            throw new IOException("Trying to apply patch for wrong file");
+        }
+        this.manifest = manifest;
+        this.dataOffset = Math.max(0, dataOffset);
+        this.dataSize = dataSize;
+        try {
+            blockDigest = manifest.hash.newDigest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digestBuffer = new byte[blockDigest.getDigestLength()];
+
+        patchFile = new RandomAccessFile(patchFilePath, "r");
+        RandomAccessFile originalFile = null;
+        try {
+            originalFile = new RandomAccessFile(filePath, "r");
+        } catch (FileNotFoundException ignored) {
+        }
+        this.originalFile = originalFile;
+    }
+
+    /**
+     * @return size of the patched file
+     */
+    public long size() {
+        return manifest.size;
+    }
+
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Sets position of the next read, reads past the end of the file give -1
+     */
+    public synchronized PatchedFileChannel position(long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        this.position = position;
+        return this;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reads up to dst remaining bytes at the position, doesn't change position of the channel
+     *
+     * @return count of bytes read, -1 if the position is at the end of the file
+     */
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (position >= manifest.size) return -1;
+        int read = 0;
+        while (dst.hasRemaining() && position < manifest.size) {
+            int count = readBlock(dst, position);
+            position += count;
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) return;
+        open = false;
+        try {
+            patchFile.close();
+        } finally {
+            if (originalFile != null) {
+                originalFile.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Reads from the block the position is in, up to the end of the block
+     *
+     * @return count of bytes read
+     */
+    private int readBlock(ByteBuffer dst, long position) throws IOException {
+        PatchBlock block = manifest.blockContaining(position);
+        if (block == null || position - block.offset >= blockLength(block)) {
+            throw new IOException("Patch block not found at offset " + position);
+        }
+        long skip = position - block.offset;
+        int count = (int) Math.min(dst.remaining(), blockLength(block) - skip);
+        if (block.kind == PatchBlock.FROM_PATCH) {
+            // block is a copy of the new block placed earlier or later in the file
+            PatchBlock source = manifest.blockAt(block.sourceOffset);
+            if (source == null || source.kind == PatchBlock.FROM_PATCH) {
+                throw new IOException("Patch block not found at offset " + block.sourceOffset);
+            }
+            count = (int) Math.min(count, blockLength(source) - skip);
+            block = source;
+        }
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + count);
+        try {
+            switch (block.kind) {
+                case PatchBlock.NEW:
+                    if (block.codec != null) {
+                        dst.put(decompressed(block), (int) skip, count);
+                    } else {
+                        checkData(block.sourceOffset + skip + count);
+                        read(patchFile.getChannel(), dataOffset + block.sourceOffset + skip,
+                                dst, PatchListener.Source.PATCH);
+                    }
+                    break;
+                case PatchBlock.ZERO:
+                    count = Math.min(count, ZeroBlocks.zeros.length);
+                    dst.put(ZeroBlocks.zeros, 0, count);
+                    break;
+                default:
+                    if (originalFile == null) {
+                        throw new IOException("Original file not found");
+                    }
+                    read(originalFile.getChannel(), block.sourceOffset + skip,
+                            dst, PatchListener.Source.OLD_FILE);
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return count;
+    }
+
+    private void checkData(long end) throws IOException {
+        if (end > dataSize) {
+            throw new IOException("Patch data is too short");
+        }
+    }
+
+    private int blockLength(PatchBlock block) {
+        return (int) Math.max(0, Math.min(
+                block.dataSize(manifest.blocksize), manifest.size - block.offset));
+    }
+
+    private void read(FileChannel channel, long position, ByteBuffer dst,
+                      PatchListener.Source source)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException(source == PatchListener.Source.PATCH ?
+                        "Patch data is too short" : "Original file is too short");
+            }
+            listener.onRead(source, read);
+            position += read;
+        }
+    }
+
+    /**
+     * @return decompressed data of the block, from the cache if it is there
+     */
+    private byte[] decompressed(PatchBlock block) throws IOException {
+        int victim = 0;
+        for (int i = 0; i < cacheSize; i++) {
+            if (cachedBlocks[i] == block) {
+                cacheUses[i] = ++uses;
+                return cachedData[i];
+            }
+            if (cacheUses[i] < cacheUses[victim]) {
+                victim = i;
+            }
+        }
+
+        BlockCodec codec = BlockCodec.forName(block.codec);
+        if (codec == null) {
+            throw new IOException("Unknown patch block codec: " + block.codec);
+        }
+        checkData(block.sourceOffset + block.storedSize);
+        if (storedData.length < block.storedSize) {
+            storedData = new byte[block.storedSize];
+            storedBuffer = ByteBuffer.wrap(storedData);
+            listener.onBufferAllocated(storedData.length);
+        }
+        storedBuffer.clear();
+        storedBuffer.limit(block.storedSize);
+        read(patchFile.getChannel(), dataOffset + block.sourceOffset, storedBuffer,
+                PatchListener.Source.PATCH);
+
+        int size = block.dataSize(manifest.blocksize);
+        byte[] data = cachedData[victim];
+        cachedBlocks[victim] = null;
+        if (data == null || data.length < size) {
+            data = new byte[size];
+            cachedData[victim] = data;
+            listener.onBufferAllocated(data.length);
+        }
+        codec.decompress(storedData, 0, block.storedSize, data, 0, size);
+        if (block.hash != null) {
+            blockDigest.update(data, 0, size);
+            try {
+                blockDigest.digest(digestBuffer, 0, digestBuffer.length);
+            } catch (DigestException e) {
+                throw new IOException(e);
+            }
+            if (!block.hashEquals(digestBuffer)) {
+                throw new IOException(String.format(
+                        "Invalid patch block at offset %s, expected hash: %s, actual: %s",
+                        block.offset, block.hashHex(), Hex.encode(digestBuffer)));
+            }
+        }
+        cachedBlocks[victim] = block;
+        cacheUses[victim] = ++uses;
+        return data;
+    }
+
+    /**
+     * Counts bytes read from the patch, to find where its data entry starts
+     */
+    private static final class CountingStream extends FilterInputStream {
+        long count = 0;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
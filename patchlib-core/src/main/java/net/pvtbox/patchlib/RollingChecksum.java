@@ -0,0 +1,64 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * rsync-style weak checksum over a fixed size window, which can be moved
+ * forward one byte at a time in O(1).
+ */
+final class RollingChecksum {
+    private final int windowSize;
+    private int a;
+    private int b;
+
+    RollingChecksum(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    static int of(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    void reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < windowSize; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (windowSize - i) * x;
+        }
+    }
+
+    void roll(byte out, byte in) {
+        int o = out & 0xff;
+        a += (in & 0xff) - o;
+        b += a - windowSize * o;
+    }
+
+    int value() {
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+}
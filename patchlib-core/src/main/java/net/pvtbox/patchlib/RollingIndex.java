@@ -0,0 +1,93 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Old blocks by rolling checksum, kept in primitive arrays with open addressing,
+ * so lookup done at every byte of the new file doesn't box checksums.
+ * Blocks with the same checksum are chained in order they are added.
+ */
+final class RollingIndex {
+    private final int[] checksums;
+    /**
+     * First and last entry + 1 for every used slot
+     */
+    private final int[] heads;
+    private final int[] tails;
+    private final int[] blocks;
+    /**
+     * Next entry + 1 with the same checksum
+     */
+    private final int[] next;
+    private int count = 0;
+
+    RollingIndex(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 1) * 2) * 2;
+        checksums = new int[slots];
+        heads = new int[slots];
+        tails = new int[slots];
+        blocks = new int[Math.max(capacity, 1)];
+        next = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int checksum, int block) {
+        int slot = slot(checksum);
+        blocks[count] = block;
+        if (heads[slot] == 0) {
+            checksums[slot] = checksum;
+            heads[slot] = count + 1;
+        } else {
+            next[tails[slot] - 1] = count + 1;
+        }
+        tails[slot] = count + 1;
+        count++;
+    }
+
+    /**
+     * @return first entry with given checksum or -1
+     */
+    int first(int checksum) {
+        return heads[slot(checksum)] - 1;
+    }
+
+    /**
+     * @return next entry with the same checksum or -1
+     */
+    int next(int entry) {
+        return next[entry] - 1;
+    }
+
+    int block(int entry) {
+        return blocks[entry];
+    }
+
+    /**
+     * @return slot used by the checksum or the empty one it would take
+     */
+    private int slot(int checksum) {
+        int mask = heads.length - 1;
+        // low bits of rolling checksum are its plain byte sum, mix them with the rest
+        int hash = checksum * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (heads[slot] != 0 && checksums[slot] != checksum) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
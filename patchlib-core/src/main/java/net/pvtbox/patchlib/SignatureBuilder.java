@@ -0,0 +1,101 @@
+package net.pvtbox.patchlib;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Builds block signature of the data passed sequentially, in pieces of any size
+ */
+final class SignatureBuilder {
+    private final MessageDigest digest;
+    private final int blocksize;
+    private final BlockSignature signature;
+    private final byte[] digestBuffer;
+    private long position = 0;
+    private long blockStart = 0;
+    private int pending = 0;
+
+    SignatureBuilder(MessageDigest digest, int blocksize, BlockSignature signature) {
+        this.digest = digest;
+        this.blocksize = blocksize;
+        this.signature = signature;
+        digestBuffer = new byte[signature.digestLength()];
+    }
+
+    void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, blocksize - pending);
+            digest.update(data, offset, count);
+            pending += count;
+            position += count;
+            offset += count;
+            length -= count;
+            if (pending == blocksize) {
+                completeBlock();
+            }
+        }
+    }
+
+    /**
+     * Adds block hashed elsewhere, data passed before must end on the block boundary
+     *
+     * @param length size of the block, less than block size for the last one only
+     */
+    void add(byte[] blockDigest, int digestOffset, int length) {
+        if (pending > 0) {
+            throw new IllegalStateException("Block is not complete");
+        }
+        signature.add(blockStart, blockDigest, digestOffset);
+        blockStart += length;
+        position += length;
+    }
+
+    /**
+     * Completes last partial block
+     */
+    void finish() {
+        if (pending > 0) {
+            completeBlock();
+        }
+    }
+
+    /**
+     * @return count of bytes passed
+     */
+    long position() {
+        return position;
+    }
+
+    BlockSignature signature() {
+        return signature;
+    }
+
+    private void completeBlock() {
+        try {
+            digest.digest(digestBuffer, 0, digestBuffer.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        signature.add(blockStart, digestBuffer, 0);
+        blockStart += pending;
+        pending = 0;
+    }
+}
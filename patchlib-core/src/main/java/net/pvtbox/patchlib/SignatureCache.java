@@ -0,0 +1,324 @@
+package net.pvtbox.patchlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Cache of block signatures of files, kept in memory with LRU eviction
+ * and optionally stored on disk, one file per signed file and block size.
+ * Signature is valid while size, modification time and identity (device and inode)
+ * of the file stay the same. Set it with {@link Patch#setSignatureCache(SignatureCache)}
+ * to be used by hashing methods of {@link Patch}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SignatureCache {
+    private static final String TAG = "PvtboxSignatureCache";
+    private static final byte[] magic = {'P', 'V', 'T', 'S'};
+    private static final int version = 2;
+    /**
+     * File changed within this time after it was signed may have the same
+     * modification time, such signatures are not trusted until file is signed again
+     */
+    private static final long racyInterval = 2000;
+
+    private final File directory;
+    private final FileIdentity identity;
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    /**
+     * Cache which identifies files by path only
+     *
+     * @param directory  directory to store signatures in, null to keep them in memory only
+     * @param maxEntries count of signatures kept in memory
+     */
+    public SignatureCache(File directory, int maxEntries) {
+        this(directory, maxEntries, null);
+    }
+
+    /**
+     * @param identity provides device and inode numbers of files, so file replaced
+     *                 by another one is not mistaken for the same file
+     */
+    public SignatureCache(File directory, final int maxEntries, FileIdentity identity) {
+        this.directory = directory;
+        this.identity = identity;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create signature cache directory " + directory);
+        }
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return cached signature of the file if file is not changed since it was signed, null otherwise
+     */
+    public BlockSignature get(String filePath, int blocksize) {
+        return get(filePath, blocksize, BlockHash.md5);
+    }
+
+    public BlockSignature get(String filePath, int blocksize, BlockHash hash) {
+        FileKey key = fileKey(filePath);
+        return key == null ? null : get(key, blocksize, hash);
+    }
+
+    /**
+     * Removes cached signatures of the file for all block sizes
+     */
+    public synchronized void invalidate(String filePath) {
+        String path = new File(filePath).getAbsolutePath();
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().key.path.equals(path)) {
+                iterator.remove();
+            }
+        }
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) return;
+        String prefix = pathHash(path) + ".";
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    BlockSignature get(FileKey key, int blocksize, BlockHash hash) {
+        String name = entryName(key.path, blocksize, hash);
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(name);
+        }
+        if (entry == null && directory != null) {
+            entry = read(new File(directory, name));
+            if (entry != null) {
+                synchronized (this) {
+                    entries.put(name, entry);
+                }
+            }
+        }
+        if (entry == null || !entry.key.equals(key) || entry.blocksize != blocksize ||
+                !entry.hash.equals(hash.name()) ||
+                entry.key.time - entry.key.modified < racyInterval) {
+            return null;
+        }
+        return entry.signature.copy();
+    }
+
+    /**
+     * Stores signature of the file, key is taken before the file was read
+     */
+    void put(FileKey key, int blocksize, BlockHash hash, BlockSignature signature) {
+        String name = entryName(key.path, blocksize, hash);
+        CacheEntry entry = new CacheEntry(key, blocksize, hash.name(), signature.copy());
+        synchronized (this) {
+            entries.put(name, entry);
+        }
+        if (directory != null) {
+            write(new File(directory, name), entry);
+        }
+    }
+
+    /**
+     * @return state of the file, null if file is not found
+     */
+    FileKey fileKey(String filePath) {
+        long time = System.currentTimeMillis();
+        File file = new File(filePath);
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        if (modified == 0 && !file.exists()) return null;
+        long[] deviceInode = {0, 0};
+        if (identity != null) {
+            try {
+                deviceInode = identity.identity(path);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return new FileKey(path, size, modified, deviceInode[0], deviceInode[1], time);
+    }
+
+    private static String entryName(String path, int blocksize, BlockHash hash) {
+        return pathHash(path) + "." + blocksize + "." + hash.name();
+    }
+
+    private static String pathHash(String path) {
+        try {
+            return Hex.encode(MessageDigest.getInstance("MD5").digest(path.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(File file, CacheEntry entry) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp, false)));
+            try {
+                out.write(magic);
+                PatchManifest.writeVarLong(out, version);
+                out.writeUTF(entry.key.path);
+                PatchManifest.writeVarLong(out, entry.key.size);
+                PatchManifest.writeVarLong(out, entry.key.modified);
+                PatchManifest.writeVarLong(out, entry.key.device);
+                PatchManifest.writeVarLong(out, entry.key.inode);
+                PatchManifest.writeVarLong(out, entry.key.time);
+                PatchManifest.writeVarLong(out, entry.blocksize);
+                out.writeUTF(entry.hash);
+                BlockSignature signature = entry.signature;
+                PatchManifest.writeVarLong(out, signature.digestLength());
+                PatchManifest.writeVarLong(out, signature.size());
+                byte[] digest = new byte[signature.digestLength()];
+                for (int i = 0; i < signature.size(); i++) {
+                    signature.digestAt(i, digest, 0);
+                    out.write(digest);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception while writing signature cache entry", e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private static CacheEntry read(File file) {
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                byte[] header = new byte[magic.length];
+                in.readFully(header);
+                if (!Arrays.equals(header, magic) || PatchManifest.readVarLong(in) != version) {
+                    throw new IOException("Invalid signature cache entry");
+                }
+                String path = in.readUTF();
+                long size = PatchManifest.readVarLong(in);
+                long modified = PatchManifest.readVarLong(in);
+                long device = PatchManifest.readVarLong(in);
+                long inode = PatchManifest.readVarLong(in);
+                long time = PatchManifest.readVarLong(in);
+                int blocksize = (int) PatchManifest.readVarLong(in);
+                String hash = in.readUTF();
+                int digestLength = (int) PatchManifest.readVarLong(in);
+                int count = (int) PatchManifest.readVarLong(in);
+                BlockSignature signature = new BlockSignature(digestLength, count);
+                byte[] digest = new byte[digestLength];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(digest);
+                    signature.add((long) i * blocksize, digest, 0);
+                }
+                return new CacheEntry(new FileKey(path, size, modified, device, inode, time),
+                        blocksize, hash, signature);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception while reading signature cache entry", e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private static final class CacheEntry {
+        final FileKey key;
+        final int blocksize;
+        final String hash;
+        final BlockSignature signature;
+
+        CacheEntry(FileKey key, int blocksize, String hash, BlockSignature signature) {
+            this.key = key;
+            this.blocksize = blocksize;
+            this.hash = hash;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * State of the file which signature depends on, with time the state was taken
+     */
+    static final class FileKey {
+        final String path;
+        final long size;
+        final long modified;
+        final long device;
+        final long inode;
+        final long time;
+
+        FileKey(String path, long size, long modified, long device, long inode, long time) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.device = device;
+            this.inode = inode;
+            this.time = time;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FileKey)) return false;
+            FileKey other = (FileKey) o;
+            return size == other.size && modified == other.modified &&
+                    device == other.device && inode == other.inode && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + (int) (inode ^ modified);
+        }
+    }
+}
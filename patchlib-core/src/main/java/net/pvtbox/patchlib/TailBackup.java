@@ -0,0 +1,187 @@
+package net.pvtbox.patchlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * End of the file patched in place, saved next to the file before the patch overwrites it.
+ * Start of the file is never written, so the file is restored from its saved end
+ * and length when applying fails, or when applying to the file starts again
+ * after the process was killed.
+ */
+final class TailBackup {
+    static final String backupSuffix = ".tail";
+
+    private static final byte[] magic = {'P', 'V', 'T', 'T'};
+    private static final int version = 1;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final File backupFile;
+    private final long offset;
+    private final String fileHash;
+
+    private TailBackup(File file, long offset, String fileHash) {
+        this.file = file;
+        backupFile = new File(file.getPath() + backupSuffix);
+        this.offset = offset;
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * Saves the file from the offset to its end, the backup reaches the disk
+     * before the file is written
+     *
+     * @param fileHash hash of the file, backup is restored for the same file only
+     */
+    static TailBackup save(File file, long offset, String fileHash) throws IOException {
+        TailBackup backup = new TailBackup(file, offset, fileHash);
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        FileOutputStream fos = new FileOutputStream(backup.backupFile, false);
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(fos);
+            long length = source.length();
+            out.write(magic);
+            PatchManifest.writeVarLong(out, version);
+            byte[] hash = hashBytes(fileHash);
+            PatchManifest.writeVarLong(out, hash.length);
+            out.write(hash);
+            PatchManifest.writeVarLong(out, length);
+            PatchManifest.writeVarLong(out, offset);
+            byte[] data = new byte[(int) Math.min(Patch.defaultBlockSize, length - offset)];
+            source.seek(offset);
+            for (long position = offset; position < length; ) {
+                int read = source.read(data, 0, (int) Math.min(data.length, length - position));
+                if (read < 0) {
+                    throw new IOException("File changed while it was saved");
+                }
+                out.write(data, 0, read);
+                position += read;
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            fos.close();
+            //noinspection ResultOfMethodCallIgnored
+            backup.backupFile.delete();
+            throw e;
+        } finally {
+            fos.close();
+            source.close();
+        }
+        return backup;
+    }
+
+    /**
+     * Restores the file from the backup left by applying that was interrupted.
+     * Backup of another version of the file is discarded, as well as torn backup,
+     * which is written completely before the file is touched.
+     */
+    static void restore(File file, String fileHash) throws IOException {
+        TailBackup backup = new TailBackup(file, 0, fileHash);
+        FileInputStream stream;
+        try {
+            stream = new FileInputStream(backup.backupFile);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            byte[] header = new byte[magic.length];
+            in.readFully(header);
+            byte[] hash = hashBytes(fileHash);
+            if (Arrays.equals(header, magic) &&
+                    PatchManifest.readVarLong(in) == version &&
+                    PatchManifest.readVarLong(in) == hash.length) {
+                byte[] backupHash = new byte[hash.length];
+                in.readFully(backupHash);
+                if (Arrays.equals(backupHash, hash)) {
+                    long length = PatchManifest.readVarLong(in);
+                    long offset = PatchManifest.readVarLong(in);
+                    byte[] tail = new byte[(int) (length - offset)];
+                    in.readFully(tail);
+                    write(file, offset, tail, length);
+                }
+            }
+        } catch (EOFException ignored) {
+            // backup is torn, the file is not touched yet
+        } finally {
+            stream.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        backup.backupFile.delete();
+    }
+
+    /**
+     * Size of the start of the file kept as is
+     */
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Restores the file after failed applying, the backup is deleted once it is restored
+     */
+    void restore() throws IOException {
+        restore(file, fileHash);
+    }
+
+    /**
+     * Deletes the backup after applying is finished, once the patched file reaches the disk
+     */
+    void delete() throws IOException {
+        RandomAccessFile patched = new RandomAccessFile(file, "rw");
+        try {
+            patched.getFD().sync();
+        } finally {
+            patched.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        backupFile.delete();
+    }
+
+    private static byte[] hashBytes(String fileHash) {
+        return fileHash == null ? new byte[0] : fileHash.getBytes(utf8);
+    }
+
+    private static void write(File file, long offset, byte[] tail, long length)
+            throws IOException {
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            target.seek(offset);
+            target.write(tail);
+            target.setLength(length);
+            target.getFD().sync();
+        } finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.pvtbox.patchlib;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * How result of applied patch is verified
+ */
+public enum VerifyMode {
+    /**
+     * Blocks are hashed while they are written, patching fails on the first invalid block
+     */
+    INLINE,
+    /**
+     * Blocks are copied without passing through java heap,
+     * whole result is read again and hashed after it is written
+     */
+    FINAL,
+    /**
+     * Blocks are hashed while they are written and whole result is read and hashed again
+     */
+    PARANOID
+}
@@ -0,0 +1,178 @@
+package net.pvtbox.patchlib;
+
+import java.security.MessageDigest;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * xxHash64 with seed 0 as a digest, result is big endian as in canonical form
+ */
+final class XxHash64 extends MessageDigest {
+    private static final long prime1 = 0x9E3779B185EBCA87L;
+    private static final long prime2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long prime3 = 0x165667B19E3779F9L;
+    private static final long prime4 = 0x85EBCA77C2B2AE63L;
+    private static final long prime5 = 0x27D4EB2F165667C5L;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total;
+    /**
+     * Input not yet consumed by 32 byte stripes
+     */
+    private final byte[] buffer = new byte[32];
+    private int buffered;
+
+    XxHash64() {
+        super("xxh64");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = prime1 + prime2;
+        v2 = prime2;
+        v3 = 0;
+        v4 = -prime1;
+        total = 0;
+        buffered = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        total += length;
+        int end = offset + length;
+        if (buffered > 0) {
+            int count = Math.min(32 - buffered, length);
+            System.arraycopy(input, offset, buffer, buffered, count);
+            buffered += count;
+            offset += count;
+            if (buffered < 32) return;
+            stripe(buffer, 0);
+            buffered = 0;
+        }
+        long v1 = this.v1;
+        long v2 = this.v2;
+        long v3 = this.v3;
+        long v4 = this.v4;
+        for (; offset + 32 <= end; offset += 32) {
+            v1 = round(v1, readLong(input, offset));
+            v2 = round(v2, readLong(input, offset + 8));
+            v3 = round(v3, readLong(input, offset + 16));
+            v4 = round(v4, readLong(input, offset + 24));
+        }
+        this.v1 = v1;
+        this.v2 = v2;
+        this.v3 = v3;
+        this.v4 = v4;
+        buffered = end - offset;
+        System.arraycopy(input, offset, buffer, 0, buffered);
+    }
+
+    private void stripe(byte[] input, int offset) {
+        v1 = round(v1, readLong(input, offset));
+        v2 = round(v2, readLong(input, offset + 8));
+        v3 = round(v3, readLong(input, offset + 16));
+        v4 = round(v4, readLong(input, offset + 24));
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long hash;
+        if (total >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) +
+                    Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = prime5;
+        }
+        hash += total;
+
+        int offset = 0;
+        for (; offset + 8 <= buffered; offset += 8) {
+            hash ^= round(0, readLong(buffer, offset));
+            hash = Long.rotateLeft(hash, 27) * prime1 + prime4;
+        }
+        if (offset + 4 <= buffered) {
+            hash ^= (readInt(buffer, offset) & 0xffffffffL) * prime1;
+            hash = Long.rotateLeft(hash, 23) * prime2 + prime3;
+            offset += 4;
+        }
+        for (; offset < buffered; offset++) {
+            hash ^= (buffer[offset] & 0xff) * prime5;
+            hash = Long.rotateLeft(hash, 11) * prime1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= prime2;
+        hash ^= hash >>> 29;
+        hash *= prime3;
+        hash ^= hash >>> 32;
+
+        byte[] result = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            result[i] = (byte) hash;
+            hash >>>= 8;
+        }
+        engineReset();
+        return result;
+    }
+
+    private static long round(long accumulator, long input) {
+        return Long.rotateLeft(accumulator + input * prime2, 31) * prime1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * prime1 + prime4;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL) |
+                (data[offset + 1] & 0xffL) << 8 |
+                (data[offset + 2] & 0xffL) << 16 |
+                (data[offset + 3] & 0xffL) << 24 |
+                (data[offset + 4] & 0xffL) << 32 |
+                (data[offset + 5] & 0xffL) << 40 |
+                (data[offset + 6] & 0xffL) << 48 |
+                (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) |
+                (data[offset + 1] & 0xff) << 8 |
+                (data[offset + 2] & 0xff) << 16 |
+                (data[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,82 @@
+package net.pvtbox.patchlib;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Digests of blocks of zeros by block size, so zero blocks are found by their hashes
+ * and signature of the result is built without hashing zeros of whole blocks.
+ */
+final class ZeroBlocks {
+    /**
+     * Zeros passed to digests, never written to
+     */
+    static final byte[] zeros = new byte[64 * 1024];
+
+    private final BlockHash hash;
+    private final HashMap<Integer, byte[]> digests = new HashMap<>();
+
+    ZeroBlocks(BlockHash hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * @return digest of given count of zeros
+     */
+    synchronized byte[] digest(int size) throws NoSuchAlgorithmException {
+        byte[] digest = digests.get(size);
+        if (digest == null) {
+            MessageDigest messageDigest = hash.newDigest();
+            for (int hashed = 0; hashed < size; hashed += zeros.length) {
+                messageDigest.update(zeros, 0, Math.min(zeros.length, size - hashed));
+            }
+            digest = messageDigest.digest();
+            digests.put(size, digest);
+        }
+        return digest;
+    }
+
+    boolean isZero(PatchBlock block, int size) throws NoSuchAlgorithmException {
+        return block.hash != null && size > 0 && block.hashEquals(digest(size));
+    }
+
+    /**
+     * Passes count of zeros to the builder, digests of whole blocks are taken from the cache
+     */
+    void update(SignatureBuilder builder, int blocksize, long size, long count)
+            throws NoSuchAlgorithmException {
+        while (count > 0) {
+            long position = builder.position();
+            if (position % blocksize == 0 &&
+                    (count >= blocksize || position + count == size)) {
+                int block = (int) Math.min(blocksize, count);
+                builder.add(digest(block), 0, block);
+                count -= block;
+                continue;
+            }
+            int pending = (int) Math.min(count,
+                    Math.min(zeros.length, blocksize - position % blocksize));
+            builder.update(zeros, 0, pending);
+            count -= pending;
+        }
+    }
+}
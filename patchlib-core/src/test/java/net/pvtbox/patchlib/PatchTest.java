@@ -0,0 +1,477 @@
+package net.pvtbox.patchlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Core algorithms on plain JVM, no device needed
+ */
+public class PatchTest {
+    private static final int blockSize = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File randomFile(String name, int size, long seed) throws IOException {
+        File file = folder.newFile(name);
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private File changedCopy(File origin, String name) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(origin, "r");
+        byte[] data = new byte[(int) raf.length()];
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        File file = folder.newFile(name);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            // overwrite in the middle, insert near the start, append at the end
+            data[data.length / 2] ^= 1;
+            fos.write(data, 0, 100);
+            fos.write(new byte[]{1, 2, 3});
+            fos.write(data, 100, data.length - 100);
+            fos.write(new byte[blockSize + 7]);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private void roundTrip(PatchOptions options, boolean rolling) throws Exception {
+        File origin = randomFile("origin", 40 * blockSize + 123, 42);
+        File changed = changedCopy(origin, "changed");
+        File patch = folder.newFile("patch");
+        File result = new File(folder.getRoot(), "result");
+
+        TreeMap<Long, String> originHashes = options.getChunking() == null ?
+                Patch.blocksHashes(origin.getPath(), blockSize, null, options.getBlockHash()) :
+                Patch.chunksHashes(origin.getPath(), options.getChunking(), options.getBlockHash());
+        String originHash = Patch.hashFromBlocksHashes(originHashes, options.getBlockHash());
+        Map info = Patch.createPatch(changed.getPath(), patch.getPath(), null, null,
+                originHash, originHashes,
+                rolling ? Patch.rollingHashes(origin.getPath(), blockSize) : null,
+                blockSize, options);
+
+        Patch.acceptPatch(origin.getPath(), result.getPath(), patch.getPath(), originHash, options);
+
+        TreeMap<Long, String> resultHashes = options.getChunking() == null ?
+                Patch.blocksHashes(result.getPath(), blockSize, null, options.getBlockHash()) :
+                Patch.chunksHashes(result.getPath(), options.getChunking(), options.getBlockHash());
+        assertEquals(changed.length(), result.length());
+        assertEquals(info.get("new_hash"), Patch.hashFromBlocksHashes(resultHashes, options.getBlockHash()));
+    }
+
+    @Test
+    public void patch_fixed() throws Exception {
+        roundTrip(new PatchOptions(), false);
+    }
+
+    @Test
+    public void patch_rolling() throws Exception {
+        roundTrip(new PatchOptions(), true);
+    }
+
+    @Test
+    public void patch_chunks() throws Exception {
+        roundTrip(new PatchOptions().setChunking(new Chunking(1024, 4096, 16384)), false);
+    }
+
+    private void pipelinedRoundTrip(PatchOptions options, boolean rolling) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            roundTrip(options.setExecutor(executor), rolling);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void patch_pipelined() throws Exception {
+        pipelinedRoundTrip(new PatchOptions(), false);
+    }
+
+    @Test
+    public void patch_pipelined_listener_thread() throws Exception {
+        final Thread thread = Thread.currentThread();
+        final int[] calls = new int[2];
+        pipelinedRoundTrip(new PatchOptions().setCodec(BlockCodec.deflate).setListener(
+                new PatchListener() {
+                    @Override
+                    public void onBlock(BlockKind kind, int size) {
+                        calls[Thread.currentThread() == thread ? 0 : 1]++;
+                    }
+
+                    @Override
+                    public void onProgress(Phase phase, long done, long total) {
+                        calls[Thread.currentThread() == thread ? 0 : 1]++;
+                    }
+                }), true);
+        assertTrue(calls[0] > 0);
+        assertEquals(0, calls[1]);
+    }
+
+    @Test
+    public void patch_pipelined_compressed() throws Exception {
+        pipelinedRoundTrip(new PatchOptions().setCodec(BlockCodec.deflate), true);
+    }
+
+    @Test
+    public void patch_pipelined_chunks() throws Exception {
+        pipelinedRoundTrip(new PatchOptions().setChunking(new Chunking(1024, 4096, 16384)), false);
+    }
+
+    @Test
+    public void patch_pipelined_final_verify() throws Exception {
+        pipelinedRoundTrip(new PatchOptions().setVerifyMode(VerifyMode.FINAL), true);
+    }
+
+    @Test
+    public void patch_coalesced() throws Exception {
+        roundTrip(new PatchOptions().setCoalesceBlocks(true), true);
+    }
+
+    @Test
+    public void patch_coalesced_pipelined() throws Exception {
+        pipelinedRoundTrip(new PatchOptions().setCoalesceBlocks(true), true);
+    }
+
+    @Test
+    public void patch_zero_blocks() throws Exception {
+        roundTrip(new PatchOptions().setZeroBlocks(true), false);
+    }
+
+    @Test
+    public void patch_zero_blocks_pipelined() throws Exception {
+        pipelinedRoundTrip(new PatchOptions().setZeroBlocks(true).setCoalesceBlocks(true), true);
+    }
+
+    @Test
+    public void zero_blocks_manifest_version() throws Exception {
+        ArrayList<PatchBlock> blocks = new ArrayList<>();
+        blocks.add(new PatchBlock(0, PatchBlock.FROM_OLD, 0, -1, null));
+        PatchManifest manifest = new PatchManifest(blocks);
+        manifest.blocksize = blockSize;
+        manifest.size = 2 * blockSize;
+        assertEquals(1, manifest.toBinary()[4]);
+
+        // older versions reject the manifest instead of reading zeros from the old file
+        blocks.add(new PatchBlock(blockSize, PatchBlock.ZERO, 0, -1, null));
+        manifest = new PatchManifest(blocks);
+        manifest.blocksize = blockSize;
+        manifest.size = 2 * blockSize;
+        byte[] binary = manifest.toBinary();
+        assertEquals(4, binary[4]);
+        PatchManifest read = PatchManifest.readBinary(new ByteArrayInputStream(binary));
+        assertEquals(PatchBlock.ZERO, read.blocks.get(1).kind);
+    }
+
+    @Test
+    public void broken_manifest_rejected() throws Exception {
+        // count of blocks and length of the string out of range
+        assertManifestRejected(new long[]{1, 0, 0, 0, blockSize, 0, 0, 16, 0xffffffffL});
+        assertManifestRejected(new long[]{1, 0, 0, 0, blockSize, 0, 0, 16, Integer.MAX_VALUE});
+        assertManifestRejected(new long[]{1, Integer.MAX_VALUE});
+        assertManifestRejected(new long[]{1, 0, 0, 0, blockSize, 0, 0, 1L << 40, 1});
+    }
+
+    private static void assertManifestRejected(long[] values) throws Exception {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        binary.write(new byte[]{'P', 'V', 'T', 'M'});
+        for (long value : values) {
+            PatchManifest.writeVarLong(binary, value);
+        }
+        try {
+            PatchManifest.readBinary(new ByteArrayInputStream(binary.toByteArray()));
+            fail("Broken manifest is read");
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void patchedView(PatchOptions options, boolean rolling) throws Exception {
+        File origin = randomFile("origin", 40 * blockSize + 123, 42);
+        File changed = changedCopy(origin, "changed");
+        File patch = folder.newFile("patch");
+
+        TreeMap<Long, String> originHashes = Patch.blocksHashes(origin.getPath(), blockSize);
+        String originHash = Patch.hashFromBlocksHashes(originHashes);
+        Patch.createPatch(changed.getPath(), patch.getPath(), null, null,
+                originHash, originHashes,
+                rolling ? Patch.rollingHashes(origin.getPath(), blockSize) : null,
+                blockSize, options);
+        byte[] expected = readAll(changed);
+
+        PatchedFileChannel view = Patch.openPatched(
+                origin.getPath(), patch.getPath(), originHash, null);
+        try {
+            assertEquals(expected.length, view.size());
+            byte[] actual = new byte[expected.length];
+            InputStream stream = Channels.newInputStream(view);
+            int read = 0;
+            int count;
+            while ((count = stream.read(actual, read, Math.min(1000, actual.length - read))) > 0) {
+                read += count;
+            }
+            assertEquals(expected.length, read);
+            assertArrayEquals(expected, actual);
+            assertEquals(-1, stream.read());
+
+            // reads at random positions cross blocks
+            Random random = new Random(7);
+            for (int i = 0; i < 100; i++) {
+                int position = random.nextInt(expected.length);
+                ByteBuffer buffer = ByteBuffer.allocate(random.nextInt(3 * blockSize) + 1);
+                count = view.read(buffer, position);
+                assertEquals(Math.min(buffer.capacity(), expected.length - position), count);
+                assertArrayEquals(Arrays.copyOfRange(expected, position, position + count),
+                        Arrays.copyOf(buffer.array(), count));
+            }
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void patched_view() throws Exception {
+        patchedView(new PatchOptions(), false);
+    }
+
+    @Test
+    public void patched_view_rolling_compressed() throws Exception {
+        patchedView(new PatchOptions().setCodec(BlockCodec.deflate).setZeroBlocks(true), true);
+    }
+
+    @Test
+    public void patched_view_coalesced() throws Exception {
+        patchedView(new PatchOptions().setCoalesceBlocks(true).setZeroBlocks(true), false);
+    }
+
+    private static File withBlocks(File file, int... blocks) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (int block : blocks) {
+                raf.seek((long) block * blockSize);
+                raf.write(0xff);
+            }
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void merkle_tree_ranges() throws Exception {
+        File origin = randomFile("origin", 1000 * blockSize + 123, 42);
+        File changed = withBlocks(randomFile("changed", 1000 * blockSize + 123, 42), 3, 4, 700);
+        MerkleTree originTree = new MerkleTree(
+                Patch.blockSignature(origin.getPath(), blockSize), blockSize, BlockHash.md5);
+        MerkleTree changedTree = new MerkleTree(
+                Patch.blockSignature(changed.getPath(), blockSize), blockSize, BlockHash.md5);
+        assertEquals(1001, originTree.blockCount());
+        assertEquals(10, originTree.height());
+
+        List<long[]> ranges = originTree.differingRanges(changedTree);
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[]{3L * blockSize, 5L * blockSize}, ranges.get(0));
+        assertArrayEquals(new long[]{700L * blockSize, 701L * blockSize}, ranges.get(1));
+        assertEquals(0, originTree.differingRanges(originTree).size());
+
+        // only children of differing nodes are exchanged
+        MerkleComparison comparison = new MerkleComparison(
+                originTree, changedTree.blockCount(), changedTree.rootHash());
+        int exchanged = 1;
+        while (!comparison.isDone()) {
+            int[] nodes = comparison.requestedNodes();
+            exchanged += nodes.length;
+            comparison.received(changedTree.nodeHashes(comparison.level(), nodes));
+        }
+        assertTrue(exchanged < 3 * 2 * (originTree.height() + 1));
+        assertEquals(2, comparison.differingRanges().size());
+    }
+
+    @Test
+    public void merkle_tree_appended() throws Exception {
+        File origin = randomFile("origin", 100 * blockSize, 42);
+        File appended = randomFile("appended", 130 * blockSize + 5, 42);
+        MerkleTree originTree = MerkleTree.fromBlocksHashes(
+                Patch.blocksHashes(origin.getPath(), blockSize), blockSize, BlockHash.md5);
+        MerkleTree appendedTree = MerkleTree.fromBlocksHashes(
+                Patch.blocksHashes(appended.getPath(), blockSize), blockSize, BlockHash.md5);
+
+        List<long[]> ranges = originTree.differingRanges(appendedTree);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[]{100L * blockSize, 131L * blockSize}, ranges.get(0));
+        assertEquals(1, appendedTree.differingRanges(originTree).size());
+    }
+
+    private void appendInPlace(PatchOptions options, int appended) throws Exception {
+        File origin = randomFile("origin", 40 * blockSize + 123, 42);
+        File grown = randomFile("grown", 40 * blockSize + 123 + appended, 42);
+        File patch = folder.newFile("patch");
+
+        TreeMap<Long, String> originHashes = Patch.blocksHashes(origin.getPath(), blockSize);
+        String originHash = Patch.hashFromBlocksHashes(originHashes);
+        Map info = Patch.createPatch(grown.getPath(), patch.getPath(), null, null,
+                originHash, originHashes, null, blockSize, options);
+        TreeMap blocks = (TreeMap) info.get("blocks");
+        for (long offset = 0; offset < 40 * blockSize; offset += blockSize) {
+            Map block = (Map) blocks.get(offset);
+            assertEquals(false, block.get("new"));
+            assertEquals(offset, block.get("offset"));
+        }
+
+        final long[] read = {0};
+        final long[] written = {0};
+        options.setInPlace(true).setListener(new PatchListener() {
+            @Override
+            public void onRead(Source source, long bytes) {
+                if (source != Source.PATCH) {
+                    read[0] += bytes;
+                }
+            }
+
+            @Override
+            public void onWrite(Source source, long bytes) {
+                if (source == Source.RESULT) {
+                    written[0] += bytes;
+                }
+            }
+        });
+        ArrayList result = Patch.acceptPatch(
+                origin.getPath(), origin.getPath(), patch.getPath(), originHash, options);
+
+        assertArrayEquals(readAll(grown), readAll(origin));
+        assertEquals(Patch.blocksHashes(grown.getPath(), blockSize), result.get(1));
+        // only the end of the file starting from the old last block is touched
+        assertTrue(written[0] <= appended + blockSize);
+        assertTrue(read[0] <= appended + blockSize);
+    }
+
+    @Test
+    public void append_in_place() throws Exception {
+        appendInPlace(new PatchOptions(), 10 * blockSize + 5);
+    }
+
+    @Test
+    public void append_in_place_pipelined() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            appendInPlace(new PatchOptions().setExecutor(executor).setZeroBlocks(true)
+                    .setCodec(BlockCodec.deflate), 3 * blockSize);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void append_in_place_coalesced() throws Exception {
+        appendInPlace(new PatchOptions().setCoalesceBlocks(true), 10 * blockSize + 5);
+    }
+
+    @Test
+    public void append_in_place_cancelled() throws Exception {
+        File origin = randomFile("origin", 40 * blockSize + 123, 42);
+        File grown = randomFile("grown", 40 * blockSize + 123 + 10 * blockSize, 42);
+        File patch = folder.newFile("patch");
+        byte[] originData = readAll(origin);
+
+        TreeMap<Long, String> originHashes = Patch.blocksHashes(origin.getPath(), blockSize);
+        String originHash = Patch.hashFromBlocksHashes(originHashes);
+        Patch.createPatch(grown.getPath(), patch.getPath(), null, null,
+                originHash, originHashes, null, blockSize, new PatchOptions());
+
+        final CancellationToken cancellation = new CancellationToken();
+        PatchOptions options = new PatchOptions().setInPlace(true).setCancellation(cancellation)
+                .setListener(new PatchListener() {
+                    @Override
+                    public void onWrite(Source source, long bytes) {
+                        if (source == Source.RESULT) {
+                            cancellation.cancel();
+                        }
+                    }
+                });
+        try {
+            Patch.acceptPatch(origin.getPath(), origin.getPath(), patch.getPath(),
+                    originHash, options);
+            fail("Applying is not cancelled");
+        } catch (CancellationException ignored) {
+        }
+
+        // the end written before cancellation is rolled back
+        assertArrayEquals(originData, readAll(origin));
+        assertFalse(new File(origin.getPath() + TailBackup.backupSuffix).exists());
+    }
+
+    @Test
+    public void patch_binary_compressed_xxh64() throws Exception {
+        roundTrip(new PatchOptions()
+                .setManifestFormat(ManifestFormat.BINARY)
+                .setCodec(BlockCodec.deflate)
+                .setBlockHash(BlockHash.xxHash64), true);
+    }
+}
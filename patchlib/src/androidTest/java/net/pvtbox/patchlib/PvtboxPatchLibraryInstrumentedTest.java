@@ -9,17 +9,28 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
 *  
@@ -288,7 +299,8 @@ public class PvtboxPatchLibraryInstrumentedTest {
         Map block2 = (Map) blocks.get((long) Patch.defaultBlockSize * 2);
         assertEquals(false, block0.get("new"));
         assertEquals(false, block0.get("from_patch"));
-        assertEquals((long) Patch.defaultBlockSize, block0.get("offset"));
+        // the same first block of the grown file stays in place
+        assertEquals(0L, block0.get("offset"));
         assertEquals("3a7c3c35eee529587f401af6c8646d79", block0.get("hash"));
         assertEquals(false, block1.get("new"));
         assertEquals(false, block1.get("from_patch"));
@@ -368,4 +380,1081 @@ public class PvtboxPatchLibraryInstrumentedTest {
         assertEquals(origBlocks, patchedBlocks);
         assertTrue(fileContentsEq(origin, result));
     }
+
+    @Test
+    public void rolling_patch_insert() throws Exception {
+        File patched =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.patched"),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        fillFile(
+                                                createFile("0.orig"),
+                                                41, 1),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        TreeMap patchedRolling = Patch.rollingHashes(patched.getPath(), Patch.defaultBlockSize);
+        assertEquals(2, patchedRolling.size());
+
+        Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, patchedRolling, Patch.defaultBlockSize);
+        assertEquals("rolling", patchInfo.get("layout"));
+        Map blocks = (Map) patchInfo.get("blocks");
+        assertEquals(4, blocks.size());
+
+        Map block0 = (Map) blocks.get(0L);
+        Map block1 = (Map) blocks.get(1L);
+        Map block2 = (Map) blocks.get(1L + Patch.defaultBlockSize);
+        Map block3 = (Map) blocks.get(1L + Patch.defaultBlockSize * 2);
+
+        assertEquals(true, block0.get("new"));
+        assertEquals(1, block0.get("data_size"));
+
+        assertEquals(false, block1.get("new"));
+        assertEquals(false, block1.get("from_patch"));
+        assertEquals(0L, block1.get("offset"));
+
+        assertEquals(false, block2.get("new"));
+        assertEquals(false, block2.get("from_patch"));
+        assertEquals((long) Patch.defaultBlockSize, block2.get("offset"));
+
+        assertEquals(false, block3.get("new"));
+        assertEquals(false, block3.get("from_patch"));
+        assertEquals((long) Patch.defaultBlockSize * 2, block3.get("offset"));
+        assertEquals(Patch.defaultBlockSize / 2, block3.get("data_size"));
+
+        TreeMap resultBlocks = (TreeMap) Patch.acceptPatch(
+                patched.getPath(), result.getPath(), patch.getPath(), patchedHash).get(1);
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), resultBlocks);
+        assertTrue(fileContentsEq(origin, result));
+    }
+
+    @Test
+    public void parallel_blocks_hashes() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize * 2),
+                        44, Patch.defaultBlockSize / 3);
+        File empty = fillFile(createFile("0.empty"), 0, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                    Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize, executor));
+            assertEquals(Patch.blocksHashes(origin.getPath(), 1000),
+                    Patch.blocksHashes(origin.getPath(), 1000, executor));
+            assertEquals(0, Patch.blocksHashes(empty.getPath(), Patch.defaultBlockSize, executor).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void patch_to_stream() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File patched = createFile("0.patched");
+        File result = createFile("0.result");
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Map patchInfo = Patch.createPatch(origin.getPath(), stream, null, null, null, null, null, Patch.defaultBlockSize);
+        assertEquals(2, ((Map) patchInfo.get("blocks")).size());
+
+        OutputStream fo = new FileOutputStream(patch);
+        stream.writeTo(fo);
+        fo.close();
+
+        Map blocks = (Map) Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(), null).get(1);
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), blocks);
+        assertTrue(fileContentsEq(origin, result));
+    }
+
+    @Test
+    public void patch_from_stream() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        42, Patch.defaultBlockSize / 2);
+        File patched = createFile("0.patched");
+        File result = createFile("0.result");
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Patch.createPatch(origin.getPath(), stream, null, null, null, null, null, Patch.defaultBlockSize);
+
+        Map blocks = (Map) Patch.acceptPatch(patched.getPath(), result.getPath(),
+                new ByteArrayInputStream(stream.toByteArray()), null).get(1);
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), blocks);
+        assertTrue(fileContentsEq(origin, result));
+    }
+
+    @Test
+    public void patch_binary_manifest() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        42, Patch.defaultBlockSize),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File patched = createFile("0.patched");
+        File result = createFile("0.result");
+
+        Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null, null, null, null,
+                Patch.defaultBlockSize, new PatchOptions().setManifestFormat(ManifestFormat.BINARY));
+        Map blocks = (Map) patchInfo.get("blocks");
+        assertEquals(3, blocks.size());
+        assertEquals(true, ((Map) blocks.get((long) Patch.defaultBlockSize)).get("from_patch"));
+
+        TreeMap resultBlocks = (TreeMap) Patch.acceptPatch(
+                patched.getPath(), result.getPath(), patch.getPath(), null).get(1);
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), resultBlocks);
+        assertTrue(fileContentsEq(origin, result));
+    }
+
+    @Test
+    public void patch_verify_modes() throws Exception {
+        File patched =
+                fillFile(
+                        fillFile(
+                                createFile("0.patched"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize);
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        44, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        45, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, Patch.defaultBlockSize);
+
+        for (VerifyMode mode : VerifyMode.values()) {
+            TreeMap resultBlocks = (TreeMap) Patch.acceptPatch(
+                    patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                    new PatchOptions().setVerifyMode(mode)).get(1);
+            assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), resultBlocks);
+            assertTrue(fileContentsEq(origin, result));
+        }
+
+        // block copied from the old file doesn't match, patch must fail on that block
+        fillFile(createFile("0.patched"), 41, Patch.defaultBlockSize * 2);
+        try {
+            Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(), patchedHash);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Invalid patch block at offset"));
+        }
+    }
+
+    @Test
+    public void patch_compressed() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize);
+        byte[] random = new byte[Patch.defaultBlockSize / 2];
+        new Random(42).nextBytes(random);
+        OutputStream fo = new FileOutputStream(origin, true);
+        fo.write(random);
+        fo.close();
+        File patch = createFile("0.patch");
+        File patched = createFile("0.patched");
+        File result = createFile("0.result");
+
+        for (ManifestFormat format : ManifestFormat.values()) {
+            Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null, null, null, null,
+                    Patch.defaultBlockSize,
+                    new PatchOptions().setCodec(BlockCodec.deflate).setManifestFormat(format));
+            Map blocks = (Map) patchInfo.get("blocks");
+            assertEquals(3, blocks.size());
+            assertEquals("deflate", ((Map) blocks.get(0L)).get("codec"));
+            assertEquals("deflate", ((Map) blocks.get((long) Patch.defaultBlockSize)).get("codec"));
+            // incompressible block is stored raw
+            assertEquals(null, ((Map) blocks.get(Patch.defaultBlockSize * 2L)).get("codec"));
+            assertTrue(patch.length() < Patch.defaultBlockSize);
+
+            TreeMap resultBlocks = (TreeMap) Patch.acceptPatch(
+                    patched.getPath(), result.getPath(), patch.getPath(), null).get(1);
+            assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), resultBlocks);
+            assertTrue(fileContentsEq(origin, result));
+        }
+    }
+
+    @Test
+    public void signature_cache() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize / 2);
+        // recently modified files are not trusted, their modification time may not change
+        assertTrue(origin.setLastModified(System.currentTimeMillis() - 60000));
+        File cacheDir = new File(appContext.getCacheDir(), "signatures");
+
+        SignatureCache cache = new SignatureCache(cacheDir, 8, new OsFileIdentity());
+        cache.clear();
+        Patch.setSignatureCache(cache);
+        try {
+            assertEquals(null, cache.get(origin.getPath(), Patch.defaultBlockSize));
+            BlockSignature signature = Patch.blockSignature(origin.getPath(), Patch.defaultBlockSize);
+            assertEquals(signature, cache.get(origin.getPath(), Patch.defaultBlockSize));
+            assertEquals(null, cache.get(origin.getPath(), Patch.defaultBlockSize / 2));
+
+            // signature is stored on disk
+            SignatureCache diskCache = new SignatureCache(cacheDir, 8, new OsFileIdentity());
+            assertEquals(signature, diskCache.get(origin.getPath(), Patch.defaultBlockSize));
+
+            fillFile(origin, 44, 1);
+            assertEquals(null, cache.get(origin.getPath(), Patch.defaultBlockSize));
+            assertEquals(null, diskCache.get(origin.getPath(), Patch.defaultBlockSize));
+            assertTrue(!signature.toMap().equals(
+                    Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize)));
+
+            cache.invalidate(origin.getPath());
+            assertEquals(null, new SignatureCache(cacheDir, 8, new OsFileIdentity()).get(
+                    origin.getPath(), Patch.defaultBlockSize));
+        } finally {
+            Patch.setSignatureCache(null);
+            cache.clear();
+        }
+    }
+
+    @Test
+    public void update_blocks_hashes() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        TreeMap<Long, String> blocksHashes = Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize);
+
+        RandomAccessFile file = new RandomAccessFile(origin, "rw");
+        file.seek(Patch.defaultBlockSize + 10);
+        file.write(45);
+        file.close();
+        TreeMap<Long, String> updated = Patch.updateBlocksHashes(
+                origin.getPath(), Patch.defaultBlockSize, blocksHashes,
+                new DirtyRanges().add(Patch.defaultBlockSize + 10, 1));
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), updated);
+        assertTrue(!updated.get((long) Patch.defaultBlockSize).equals(
+                blocksHashes.get((long) Patch.defaultBlockSize)));
+
+        // clean blocks are not read again
+        TreeMap<Long, String> stale = new TreeMap<>(updated);
+        stale.put(0L, blocksHashes.get((long) Patch.defaultBlockSize));
+        fillFile(origin, 46, Patch.defaultBlockSize);
+        updated = Patch.updateBlocksHashes(origin.getPath(), Patch.defaultBlockSize, stale, null);
+        TreeMap<Long, String> expected = Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize);
+        assertEquals(4, updated.size());
+        assertEquals(expected.tailMap(1L), updated.tailMap(1L));
+        assertEquals(stale.get(0L), updated.get(0L));
+
+        assertEquals(Patch.hashFromBlocksHashes(expected),
+                Patch.hashFromBlocksHashes(BlockSignature.fromMap(expected)));
+    }
+
+    @Test
+    public void update_blocks_hashes_append() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize / 2);
+        TreeMap<Long, String> blocksHashes = Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize);
+
+        // partial last block grows, though only the start of the file is marked
+        fillFile(origin, 44, Patch.defaultBlockSize);
+        RandomAccessFile file = new RandomAccessFile(origin, "rw");
+        file.seek(10);
+        file.write(45);
+        file.close();
+        TreeMap<Long, String> updated = Patch.updateBlocksHashes(
+                origin.getPath(), Patch.defaultBlockSize, blocksHashes,
+                new DirtyRanges().add(10, 1));
+        assertEquals(3, updated.size());
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize), updated);
+    }
+
+    @Test
+    public void patch_chunks_insert() throws Exception {
+        Chunking chunking = new Chunking(1024, 4096, 16384);
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+        File patched = createFile("0.patched");
+        OutputStream fo = new FileOutputStream(patched);
+        fo.write(data);
+        fo.close();
+        File origin = fillFile(createFile("0.orig"), 41, 100);
+        fo = new FileOutputStream(origin, true);
+        fo.write(data);
+        fo.close();
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedChunks = Patch.chunksHashes(patched.getPath(), chunking);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedChunks);
+        TreeMap originChunks = Patch.chunksHashes(origin.getPath(), chunking);
+        // boundaries move with the data, only first chunk differs
+        assertEquals(patchedChunks.size(), originChunks.size());
+        assertEquals(patchedChunks.lastEntry().getValue(), originChunks.lastEntry().getValue());
+
+        for (ManifestFormat format : ManifestFormat.values()) {
+            Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                    patchedHash, patchedChunks, null, Patch.defaultBlockSize,
+                    new PatchOptions().setChunking(chunking).setManifestFormat(format));
+            assertEquals("cdc", patchInfo.get("layout"));
+            Map blocks = (Map) patchInfo.get("blocks");
+            int newBlocks = 0;
+            for (Object block : blocks.values()) {
+                if ((Boolean) ((Map) block).get("new")) newBlocks++;
+            }
+            assertEquals(1, newBlocks);
+            assertTrue(patch.length() < 20 * 1024);
+
+            for (VerifyMode mode : VerifyMode.values()) {
+                ArrayList patchResult = Patch.acceptPatch(
+                        patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                        new PatchOptions().setVerifyMode(mode));
+                assertEquals(originChunks, patchResult.get(1));
+                assertTrue(fileContentsEq(origin, result));
+            }
+        }
+    }
+
+    @Test
+    public void patch_block_hash() throws Exception {
+        File patched =
+                fillFile(
+                        fillFile(
+                                createFile("0.patched"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize);
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedBlocks = Patch.blocksHashes(
+                patched.getPath(), Patch.defaultBlockSize, null, BlockHash.xxHash64);
+        assertEquals(16, ((String) patchedBlocks.firstEntry().getValue()).length());
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks, BlockHash.xxHash64);
+        assertEquals(patchedHash, Patch.hashFromBlocksHashes(
+                BlockSignature.fromMap(patchedBlocks), BlockHash.xxHash64));
+
+        for (ManifestFormat format : ManifestFormat.values()) {
+            Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                    patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                    new PatchOptions().setBlockHash(BlockHash.xxHash64).setManifestFormat(format));
+            assertEquals("xxh64", patchInfo.get("hash_algorithm"));
+            Map blocks = (Map) patchInfo.get("blocks");
+            assertEquals(false, ((Map) blocks.get(0L)).get("new"));
+
+            ArrayList patchResult = Patch.acceptPatch(
+                    patched.getPath(), result.getPath(), patch.getPath(), patchedHash);
+            assertEquals(Patch.blocksHashes(
+                    origin.getPath(), Patch.defaultBlockSize, null, BlockHash.xxHash64),
+                    patchResult.get(1));
+            assertTrue(fileContentsEq(origin, result));
+        }
+    }
+
+    private static final class CountingListener extends PatchListener {
+        final int[] phases = new int[Phase.values().length];
+        final long[] read = new long[Source.values().length];
+        final long[] written = new long[Source.values().length];
+        final int[] blocks = new int[BlockKind.values().length];
+        int buffers = 0;
+
+        @Override
+        public void onPhase(Phase phase, long nanos) {
+            assertTrue(nanos >= 0);
+            phases[phase.ordinal()]++;
+        }
+
+        @Override
+        public void onRead(Source source, long bytes) {
+            read[source.ordinal()] += bytes;
+        }
+
+        @Override
+        public void onWrite(Source source, long bytes) {
+            written[source.ordinal()] += bytes;
+        }
+
+        @Override
+        public void onBlock(BlockKind kind, int dataSize) {
+            blocks[kind.ordinal()]++;
+        }
+
+        @Override
+        public void onBufferAllocated(int size) {
+            buffers++;
+        }
+    }
+
+    @Test
+    public void patch_listener() throws Exception {
+        File patched =
+                fillFile(
+                        fillFile(
+                                createFile("0.patched"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize);
+        File origin =
+                fillFile(
+                        fillFile(
+                                createFile("0.orig"),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        CountingListener signing = new CountingListener();
+        TreeMap patchedBlocks = Patch.blocksHashes(
+                patched.getPath(), Patch.defaultBlockSize, null, BlockHash.md5, signing);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        assertEquals(1, signing.phases[PatchListener.Phase.SIGN.ordinal()]);
+        assertEquals(patched.length(), signing.read[PatchListener.Source.FILE.ordinal()]);
+        assertTrue(signing.buffers > 0);
+
+        CountingListener creating = new CountingListener();
+        Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                new PatchOptions().setListener(creating));
+        assertEquals(1, creating.phases[PatchListener.Phase.SIGN.ordinal()]);
+        assertEquals(1, creating.phases[PatchListener.Phase.DIFF.ordinal()]);
+        assertEquals(0, creating.phases[PatchListener.Phase.COMPRESS.ordinal()]);
+        assertEquals(1, creating.phases[PatchListener.Phase.WRITE.ordinal()]);
+        assertEquals(1, creating.blocks[PatchListener.BlockKind.FROM_OLD.ordinal()]);
+        assertEquals(1, creating.blocks[PatchListener.BlockKind.NEW.ordinal()]);
+        // whole file is signed and new block is copied to the patch
+        assertEquals(origin.length() + Patch.defaultBlockSize / 2,
+                creating.read[PatchListener.Source.FILE.ordinal()]);
+        assertEquals(patch.length(), creating.written[PatchListener.Source.PATCH.ordinal()]);
+
+        CountingListener applying = new CountingListener();
+        Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                new PatchOptions().setListener(applying));
+        assertTrue(fileContentsEq(origin, result));
+        assertEquals(1, applying.phases[PatchListener.Phase.EXTRACT.ordinal()]);
+        assertEquals(1, applying.phases[PatchListener.Phase.APPLY.ordinal()]);
+        assertEquals(1, applying.phases[PatchListener.Phase.VERIFY.ordinal()]);
+        assertEquals(1, applying.blocks[PatchListener.BlockKind.FROM_OLD.ordinal()]);
+        assertEquals(1, applying.blocks[PatchListener.BlockKind.NEW.ordinal()]);
+        assertEquals(Patch.defaultBlockSize,
+                applying.read[PatchListener.Source.OLD_FILE.ordinal()]);
+        assertEquals(origin.length(), applying.written[PatchListener.Source.RESULT.ordinal()]);
+        assertTrue(applying.read[PatchListener.Source.PATCH.ordinal()] > Patch.defaultBlockSize / 2);
+        assertTrue(applying.read[PatchListener.Source.PATCH.ordinal()] <= patch.length());
+        // result isn't read again with inline verification
+        assertEquals(0, applying.read[PatchListener.Source.RESULT.ordinal()]);
+    }
+
+    /**
+     * Cancels the token once the phase reaches given progress
+     */
+    private static final class CancellingListener extends PatchListener {
+        final CancellationToken cancellation = new CancellationToken();
+        private final Phase phase;
+        private final long cancelAt;
+        long progress = -1;
+
+        CancellingListener(Phase phase, long cancelAt) {
+            this.phase = phase;
+            this.cancelAt = cancelAt;
+        }
+
+        @Override
+        public void onProgress(Phase phase, long done, long total) {
+            assertTrue(done <= total);
+            if (phase != this.phase) return;
+            assertTrue(done >= progress);
+            progress = done;
+            if (done >= cancelAt) {
+                cancellation.cancel();
+            }
+        }
+    }
+
+    private ArrayList<String> tempFiles() throws IOException {
+        File temp = File.createTempFile("data", null);
+        temp.delete();
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : temp.getParentFile().list()) {
+            if (name.startsWith("data")) names.add(name);
+        }
+        return names;
+    }
+
+    @Test
+    public void patch_cancel() throws Exception {
+        File patched =
+                fillFile(
+                        fillFile(
+                                createFile("0.patched"),
+                                42, Patch.defaultBlockSize),
+                        43, Patch.defaultBlockSize);
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        43, Patch.defaultBlockSize),
+                                44, Patch.defaultBlockSize),
+                        45, Patch.defaultBlockSize / 2);
+        File patch = createFile("0.patch");
+        File result = fillFile(createFile("0.result"), 46, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ArrayList<String> tempFiles = tempFiles();
+
+        try {
+            CancellingListener signing = new CancellingListener(
+                    PatchListener.Phase.SIGN, Patch.defaultBlockSize);
+            try {
+                Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize, null,
+                        BlockHash.md5, signing, signing.cancellation);
+                fail("signing is not cancelled");
+            } catch (CancellationException ignored) {
+            }
+            assertEquals(Patch.defaultBlockSize, signing.progress);
+
+            CancellationToken cancelled = new CancellationToken();
+            cancelled.cancel();
+            try {
+                Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize / 4, executor,
+                        BlockHash.md5, null, cancelled);
+                fail("parallel signing is not cancelled");
+            } catch (CancellationException ignored) {
+            }
+
+            TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+            String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+            for (PatchListener.Phase phase : new PatchListener.Phase[]{
+                    PatchListener.Phase.SIGN, PatchListener.Phase.COMPRESS,
+                    PatchListener.Phase.WRITE}) {
+                CancellingListener creating = new CancellingListener(phase, 1);
+                try {
+                    Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                            patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                            new PatchOptions()
+                                    .setCodec(phase == PatchListener.Phase.COMPRESS ?
+                                            BlockCodec.deflate : null)
+                                    .setListener(creating)
+                                    .setCancellation(creating.cancellation));
+                    fail("patch creation is not cancelled at " + phase);
+                } catch (CancellationException ignored) {
+                }
+                assertTrue(!patch.exists());
+            }
+
+            Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                    patchedHash, patchedBlocks, null, Patch.defaultBlockSize);
+            for (VerifyMode verifyMode : VerifyMode.values()) {
+                for (PatchListener.Phase phase : new PatchListener.Phase[]{
+                        PatchListener.Phase.APPLY, PatchListener.Phase.VERIFY}) {
+                    if (phase == PatchListener.Phase.VERIFY && verifyMode == VerifyMode.INLINE) {
+                        continue;
+                    }
+                    CancellingListener applying = new CancellingListener(phase, 1);
+                    try {
+                        Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(),
+                                patchedHash, new PatchOptions()
+                                        .setVerifyMode(verifyMode)
+                                        .setListener(applying)
+                                        .setCancellation(applying.cancellation));
+                        fail("patch applying is not cancelled at " + phase);
+                    } catch (CancellationException ignored) {
+                    }
+                    assertEquals(1000, result.length());
+                }
+            }
+            assertEquals(tempFiles, tempFiles());
+
+            ArrayList patchResult = Patch.acceptPatch(
+                    patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                    new PatchOptions().setCancellation(new CancellationToken()));
+            assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                    patchResult.get(1));
+            assertTrue(fileContentsEq(origin, result));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void patch_resume() throws Exception {
+        int blocks = (int) (PatchJournal.checkpointInterval / Patch.defaultBlockSize) + 8;
+        File origin = createFile("0.orig");
+        for (int i = 0; i < blocks; i++) {
+            fillFile(origin, i, Patch.defaultBlockSize);
+        }
+        File patched = fillFile(createFile("0.patched"), 42, Patch.defaultBlockSize);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+        File journal = createFile("0.result" + PatchJournal.journalSuffix);
+        File partial = createFile("0.result" + PatchJournal.partialSuffix);
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, null, Patch.defaultBlockSize);
+
+        // process is killed after the checkpoint
+        CancellingListener applying = new CancellingListener(PatchListener.Phase.APPLY,
+                PatchJournal.checkpointInterval + 4 * Patch.defaultBlockSize);
+        try {
+            Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(),
+                    patchedHash, new PatchOptions()
+                            .setResumable(true)
+                            .setListener(applying)
+                            .setCancellation(applying.cancellation));
+            fail("patch applying is not cancelled");
+        } catch (CancellationException ignored) {
+        }
+        assertTrue(!result.exists());
+        assertTrue(journal.exists());
+        assertTrue(partial.exists());
+
+        CountingListener resuming = new CountingListener();
+        ArrayList patchResult = Patch.acceptPatch(
+                patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                new PatchOptions().setResumable(true).setListener(resuming));
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                patchResult.get(1));
+        assertTrue(fileContentsEq(origin, result));
+        assertEquals(blocks - PatchJournal.checkpointInterval / Patch.defaultBlockSize,
+                resuming.blocks[PatchListener.BlockKind.NEW.ordinal()]);
+        assertTrue(!journal.exists());
+        assertTrue(!partial.exists());
+
+        // journal of another patch is discarded
+        CancellingListener other = new CancellingListener(PatchListener.Phase.APPLY,
+                PatchJournal.checkpointInterval + 4 * Patch.defaultBlockSize);
+        try {
+            Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(),
+                    patchedHash, new PatchOptions()
+                            .setResumable(true)
+                            .setListener(other)
+                            .setCancellation(other.cancellation));
+            fail("patch applying is not cancelled");
+        } catch (CancellationException ignored) {
+        }
+        TreeMap originBlocks = Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize);
+        String originHash = Patch.hashFromBlocksHashes(originBlocks);
+        Patch.createPatch(patched.getPath(), patch.getPath(), null, null,
+                originHash, originBlocks, null, Patch.defaultBlockSize);
+        Patch.acceptPatch(origin.getPath(), result.getPath(), patch.getPath(), originHash,
+                new PatchOptions().setResumable(true));
+        assertTrue(fileContentsEq(patched, result));
+        assertTrue(!journal.exists());
+        assertTrue(!partial.exists());
+    }
+
+    @Test
+    public void patch_resume_other_layout() throws Exception {
+        int blocks = (int) (PatchJournal.checkpointInterval / Patch.defaultBlockSize) + 8;
+        File origin = createFile("0.orig");
+        for (int i = 0; i < blocks; i++) {
+            fillFile(origin, i, Patch.defaultBlockSize);
+        }
+        File patched = fillFile(createFile("0.patched"), 42, Patch.defaultBlockSize);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+        File journal = createFile("0.result" + PatchJournal.journalSuffix);
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, null, Patch.defaultBlockSize);
+
+        CancellingListener applying = new CancellingListener(PatchListener.Phase.APPLY,
+                PatchJournal.checkpointInterval + 4 * Patch.defaultBlockSize);
+        try {
+            Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(),
+                    patchedHash, new PatchOptions()
+                            .setResumable(true)
+                            .setListener(applying)
+                            .setCancellation(applying.cancellation));
+            fail("patch applying is not cancelled");
+        } catch (CancellationException ignored) {
+        }
+        assertTrue(journal.exists());
+
+        // patch between the same versions with compressed data doesn't continue the journal
+        Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                new PatchOptions().setCodec(BlockCodec.deflate));
+        CountingListener resuming = new CountingListener();
+        Patch.acceptPatch(patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                new PatchOptions().setResumable(true).setListener(resuming));
+        assertTrue(fileContentsEq(origin, result));
+        assertEquals(blocks, resuming.blocks[PatchListener.BlockKind.NEW.ordinal()]);
+        assertTrue(!journal.exists());
+    }
+
+    @Test
+    public void coalesce_blocks() throws Exception {
+        File patched = createFile("0.patched");
+        for (int i = 0; i < 10; i++) {
+            fillFile(patched, i, Patch.defaultBlockSize);
+        }
+        File origin = createFile("0.orig");
+        for (int fill : new int[]{0, 1, 2, 3, 100, 100, 101, 102, 8, 9}) {
+            fillFile(origin, fill, Patch.defaultBlockSize);
+        }
+        fillFile(origin, 103, 1000);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                    patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                    new PatchOptions().setCoalesceBlocks(true));
+            assertEquals("rolling", patchInfo.get("layout"));
+
+            TreeMap blocks = (TreeMap) patchInfo.get("blocks");
+            assertEquals(6, blocks.size());
+            Map extent = (Map) blocks.get(0L);
+            assertEquals(false, extent.get("new"));
+            assertEquals(4 * Patch.defaultBlockSize, extent.get("data_size"));
+            // new block copied by the next one is kept as is
+            assertTrue(((Map) blocks.get(4L * Patch.defaultBlockSize)).containsKey("hash"));
+            assertEquals(true, ((Map) blocks.get(5L * Patch.defaultBlockSize)).get("from_patch"));
+            extent = (Map) blocks.get(6L * Patch.defaultBlockSize);
+            assertEquals(true, extent.get("new"));
+            assertEquals(2 * Patch.defaultBlockSize, extent.get("data_size"));
+            assertTrue(!extent.containsKey("hash"));
+            extent = (Map) blocks.get(8L * Patch.defaultBlockSize);
+            assertEquals(false, extent.get("new"));
+            assertEquals(2 * Patch.defaultBlockSize, extent.get("data_size"));
+
+            for (ExecutorService applyExecutor : new ExecutorService[]{null, executor}) {
+                ArrayList patchResult = Patch.acceptPatch(
+                        patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                        new PatchOptions().setExecutor(applyExecutor));
+                assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                        patchResult.get(1));
+                assertTrue(fileContentsEq(origin, result));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void zero_blocks() throws Exception {
+        File patched = createFile("0.patched");
+        for (int i = 1; i <= 6; i++) {
+            fillFile(patched, i, Patch.defaultBlockSize);
+        }
+        File origin = createFile("0.orig");
+        for (int fill : new int[]{1, 0, 0, 7, 0, 7}) {
+            fillFile(origin, fill, Patch.defaultBlockSize);
+        }
+        fillFile(origin, 0, 1000);
+        File patch = createFile("0.patch");
+        File result = createFile("0.result");
+
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        String patchedHash = Patch.hashFromBlocksHashes(patchedBlocks);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map patchInfo = Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                    patchedHash, patchedBlocks, null, Patch.defaultBlockSize,
+                    new PatchOptions().setZeroBlocks(true));
+
+            TreeMap blocks = (TreeMap) patchInfo.get("blocks");
+            assertEquals(7, blocks.size());
+            for (long block : new long[]{1, 2, 4, 6}) {
+                Map zero = (Map) blocks.get(block * Patch.defaultBlockSize);
+                assertEquals(true, zero.get("zero"));
+                assertTrue(zero.containsKey("hash"));
+            }
+            assertEquals(1000, ((Map) blocks.get(6L * Patch.defaultBlockSize)).get("data_size"));
+            Map newBlock = (Map) blocks.get(3L * Patch.defaultBlockSize);
+            assertEquals(true, newBlock.get("new"));
+            assertEquals(0L, newBlock.get("offset"));
+            // data of the only new block is in the patch
+            assertTrue(patch.length() < 2 * Patch.defaultBlockSize);
+
+            for (ExecutorService applyExecutor : new ExecutorService[]{null, executor}) {
+                ArrayList patchResult = Patch.acceptPatch(
+                        patched.getPath(), result.getPath(), patch.getPath(), patchedHash,
+                        new PatchOptions().setExecutor(applyExecutor));
+                assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                        patchResult.get(1));
+                assertEquals(origin.length(), result.length());
+                assertTrue(fileContentsEq(origin, result));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void patched_view() throws Exception {
+        File patched = createFile("0.patched");
+        for (int i = 1; i <= 4; i++) {
+            fillFile(patched, i, Patch.defaultBlockSize);
+        }
+        File origin = createFile("0.orig");
+        for (int fill : new int[]{2, 5, 1, 5}) {
+            fillFile(origin, fill, Patch.defaultBlockSize);
+        }
+        fillFile(origin, 6, 100);
+        File patch = createFile("0.patch");
+        createPatch(origin, patched, patch, false, new PatchOptions().setCodec(BlockCodec.deflate));
+        String patchedHash = Patch.hashFromBlocksHashes(
+                Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize));
+
+        PatchedFileChannel view = Patch.openPatched(
+                patched.getPath(), patch.getPath(), patchedHash, null);
+        try {
+            assertEquals(origin.length(), view.size());
+            InputStream viewStream = Channels.newInputStream(view);
+            FileInputStream originStream = new FileInputStream(origin);
+            try {
+                int viewByte;
+                do {
+                    viewByte = viewStream.read();
+                    assertEquals(originStream.read(), viewByte);
+                } while (viewByte != -1);
+            } finally {
+                originStream.close();
+            }
+
+            // read across the end of the copied block and the start of the new one
+            ByteBuffer buffer = ByteBuffer.allocate(20);
+            assertEquals(20, view.read(buffer, 3L * Patch.defaultBlockSize - 10));
+            assertEquals(1, buffer.get(9));
+            assertEquals(5, buffer.get(10));
+            buffer = ByteBuffer.allocate(200);
+            assertEquals(100, view.read(buffer, 4L * Patch.defaultBlockSize));
+            assertEquals(-1, view.read(buffer, origin.length()));
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void append_in_place() throws Exception {
+        File patched = createFile("0.patched");
+        for (int i = 1; i <= 3; i++) {
+            fillFile(patched, i, Patch.defaultBlockSize);
+        }
+        fillFile(patched, 4, 1000);
+        File origin = createFile("0.orig");
+        for (int i = 1; i <= 3; i++) {
+            fillFile(origin, i, Patch.defaultBlockSize);
+        }
+        fillFile(origin, 4, 1000);
+        fillFile(origin, 5, Patch.defaultBlockSize);
+        File patch = createFile("0.patch");
+
+        Map patchInfo = createPatch(origin, patched, patch, false, null);
+        TreeMap blocks = (TreeMap) patchInfo.get("blocks");
+        for (long block = 0; block < 3; block++) {
+            Map kept = (Map) blocks.get(block * Patch.defaultBlockSize);
+            assertEquals(false, kept.get("new"));
+            assertEquals(block * Patch.defaultBlockSize, kept.get("offset"));
+        }
+
+        String patchedHash = Patch.hashFromBlocksHashes(
+                Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize));
+        final long[] written = {0};
+        ArrayList patchResult = Patch.acceptPatch(
+                patched.getPath(), patched.getPath(), patch.getPath(), patchedHash,
+                new PatchOptions().setInPlace(true).setListener(new PatchListener() {
+                    @Override
+                    public void onWrite(Source source, long bytes) {
+                        if (source == Source.RESULT) {
+                            written[0] += bytes;
+                        }
+                    }
+                }));
+        assertEquals(Patch.blocksHashes(origin.getPath(), Patch.defaultBlockSize),
+                patchResult.get(1));
+        assertTrue(fileContentsEq(origin, patched));
+        assertEquals(origin.length() - 3L * Patch.defaultBlockSize, written[0]);
+    }
+
+    private Map createPatch(File origin, File patched, File patch, boolean rolling,
+                            PatchOptions options) throws Exception {
+        TreeMap patchedBlocks = Patch.blocksHashes(patched.getPath(), Patch.defaultBlockSize);
+        return Patch.createPatch(origin.getPath(), patch.getPath(), null, null,
+                Patch.hashFromBlocksHashes(patchedBlocks), patchedBlocks,
+                rolling ? Patch.rollingHashes(patched.getPath(), Patch.defaultBlockSize) : null,
+                Patch.defaultBlockSize, options);
+    }
+
+    @Test
+    public void squash_patches() throws Exception {
+        File version0 =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.v0"),
+                                        42, Patch.defaultBlockSize),
+                                43, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File version1 =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.v1"),
+                                        43, Patch.defaultBlockSize),
+                                45, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File version2 =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        fillFile(
+                                                createFile("0.v2"),
+                                                46, 1000),
+                                        43, Patch.defaultBlockSize),
+                                45, Patch.defaultBlockSize),
+                        44, Patch.defaultBlockSize / 2);
+        File version3 =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.v3"),
+                                        45, Patch.defaultBlockSize),
+                                44, 1000),
+                        47, Patch.defaultBlockSize / 3);
+        File patch1 = createFile("1.patch");
+        File patch2 = createFile("2.patch");
+        File patch3 = createFile("3.patch");
+        File squashed = createFile("0.patch");
+        File result = createFile("0.result");
+
+        createPatch(version1, version0, patch1, false, null);
+        Map patch2Info = createPatch(version2, version1, patch2, true,
+                new PatchOptions().setCodec(BlockCodec.deflate));
+        Map patch3Info = createPatch(version3, version2, patch3, true,
+                new PatchOptions().setManifestFormat(ManifestFormat.BINARY));
+        TreeMap version0Blocks = Patch.blocksHashes(version0.getPath(), Patch.defaultBlockSize);
+        String version0Hash = Patch.hashFromBlocksHashes(version0Blocks);
+
+        ArrayList<String> chain = new ArrayList<>();
+        chain.add(patch1.getPath());
+        chain.add(patch2.getPath());
+        chain.add(patch3.getPath());
+        for (ManifestFormat format : ManifestFormat.values()) {
+            Map patchInfo = Patch.squashPatches(chain, squashed.getPath(),
+                    new PatchOptions().setManifestFormat(format));
+            assertEquals(patch3Info.get("new_hash"), patchInfo.get("new_hash"));
+            assertEquals(version0Hash, patchInfo.get("old_hash"));
+            assertEquals("rolling", patchInfo.get("layout"));
+
+            // data inserted by the second patch and replaced by the third one is dropped
+            long dataSize = 0;
+            for (Object block : ((Map) patchInfo.get("blocks")).values()) {
+                if ((Boolean) ((Map) block).get("new")) {
+                    dataSize += (Integer) ((Map) block).get("data_size");
+                }
+            }
+            assertEquals(Patch.defaultBlockSize + 1000 + Patch.defaultBlockSize / 3, dataSize);
+
+            ArrayList patchResult = Patch.acceptPatch(version0.getPath(), result.getPath(),
+                    squashed.getPath(), version0Hash);
+            assertEquals(Patch.blocksHashes(version3.getPath(), Patch.defaultBlockSize),
+                    patchResult.get(1));
+            assertTrue(fileContentsEq(version3, result));
+        }
+
+        // squashed patch of compressed data is compressed again
+        chain.remove(2);
+        Map patchInfo = Patch.squashPatches(chain, squashed.getPath(),
+                new PatchOptions().setCodec(BlockCodec.deflate));
+        assertEquals(patch2Info.get("new_hash"), patchInfo.get("new_hash"));
+        Patch.acceptPatch(version0.getPath(), result.getPath(), squashed.getPath(), version0Hash);
+        assertTrue(fileContentsEq(version2, result));
+        assertTrue(squashed.length() < Patch.defaultBlockSize);
+
+        chain.add(0, patch3.getPath());
+        try {
+            Patch.squashPatches(chain, squashed.getPath(), null);
+            fail("patches not making a chain are squashed");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void block_signature() throws Exception {
+        File origin =
+                fillFile(
+                        fillFile(
+                                fillFile(
+                                        createFile("0.orig"),
+                                        42, 1000),
+                                43, 1000),
+                        42, 500);
+
+        TreeMap blocks = Patch.blocksHashes(origin.getPath(), 500);
+        BlockSignature signature = Patch.blockSignature(origin.getPath(), 500);
+        assertEquals(5, signature.size());
+        assertEquals(blocks, signature.toMap());
+        assertEquals(signature, BlockSignature.fromMap(blocks));
+        assertEquals(Patch.hashFromBlocksHashes(blocks), Patch.hashFromBlocksHashes(signature));
+
+        byte[] digest = new byte[signature.digestLength()];
+        signature.digestAt(0, digest, 0);
+        assertEquals(4, signature.indexOf(digest, 0));
+        assertEquals(2000L, signature.offsetAt(signature.indexOf(digest, 0)));
+        signature.digestAt(2, digest, 0);
+        assertEquals(3, signature.indexOf(digest, 0));
+        assertEquals(2, signature.indexOfOffset(1000));
+        assertEquals(-1, signature.indexOfOffset(1001));
+    }
 }
@@ -0,0 +1,41 @@
+package net.pvtbox.patchlib;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.IOException;
+
+/**
+*  
+*  Pvtbox. Fast and secure file transfer & sync directly across your devices. 
+*  Copyright © 2020  Pb Private Cloud Solutions Ltd. 
+*  
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*     http://www.apache.org/licenses/LICENSE-2.0
+*  
+*  Unless required by applicable law or agreed to in writing, software
+*  distributed under the License is distributed on an "AS IS" BASIS,
+*  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*  limitations under the License.
+*  
+**/
+
+/**
+ * Device and inode numbers of files from stat(2)
+ */
+@SuppressWarnings("WeakerAccess")
+public final class OsFileIdentity implements FileIdentity {
+    @Override
+    public long[] identity(String path) throws IOException {
+        try {
+            StructStat stat = Os.stat(path);
+            return new long[]{stat.st_dev, stat.st_ino};
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+    }
+}